@@ -0,0 +1,79 @@
+package model;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+import java.util.concurrent.*;
+
+/* GridBench class. Free and open source: see licence.txt.
+
+JMH benchmarks for the grid's core operations, on a grid the size of a Wanderer
+level.  This is in the model package, in a separate source tree, so that it can
+use the package-private Grid class.  Build and run with make bench. */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GridBench {
+    private static final int W = 42, H = 18;
+    private Grid<Object> grid;
+    private Object[] items;
+    private int[] slots;
+
+    // Fill the grid with one background item per cell, and have one spare
+    // item per cell to show and hide in front of it.
+    @Setup
+    public void setup() {
+        grid = new Grid<>(W, H);
+        items = new Object[W * H];
+        slots = new int[W * H];
+        for (int x = 0; x < W; x++) {
+            for (int y = 0; y < H; y++) {
+                grid.back(x, y, new Object(), -1);
+                items[x * H + y] = new Object();
+                slots[x * H + y] = -1;
+            }
+        }
+        grid.clean();
+    }
+
+    // Show an item in front of every cell, then hide them all again.
+    @Benchmark
+    @OperationsPerInvocation(W * H)
+    public int showHide() {
+        for (int x = 0; x < W; x++) {
+            for (int y = 0; y < H; y++) {
+                int i = x * H + y;
+                slots[i] = grid.show(x, y, items[i], slots[i]);
+            }
+        }
+        for (int x = 0; x < W; x++) {
+            for (int y = 0; y < H; y++) {
+                int i = x * H + y;
+                grid.hide(x, y, items[i], slots[i]);
+            }
+        }
+        int n = grid.dirty();
+        grid.clean();
+        return n;
+    }
+
+    // Look up the front item in every cell.
+    @Benchmark
+    @OperationsPerInvocation(W * H)
+    public int front() {
+        int n = 0;
+        for (int x = 0; x < W; x++) {
+            for (int y = 0; y < H; y++) {
+                if (grid.front(x, y) != null) n++;
+            }
+        }
+        return n;
+    }
+
+    // Run just these benchmarks.
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[] { "GridBench" });
+    }
+}
@@ -0,0 +1,61 @@
+package model;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.annotations.State;
+import java.util.concurrent.*;
+
+/* QueueBench class. Free and open source: see licence.txt.
+
+JMH benchmarks for churn in the queue, i.e. the pattern of joining, taking and
+stopping which happens during a command with a cascade of moving entities.
+This is in the model package, in a separate source tree, so that it can use the
+package-private Queue class.  Build and run with make bench. */
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBench {
+    private static final int AGENTS = 8, ACTORS = 256;
+    private Queue<Object> queue;
+    private Object[] items;
+    private int[] tickets;
+
+    // Create a queue with some agents, and some other items to act.
+    @Setup
+    public void setup() {
+        queue = new Queue<>();
+        items = new Object[AGENTS + ACTORS];
+        tickets = new int[items.length];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = new Object();
+            tickets[i] = -1;
+        }
+        for (int i = 0; i < AGENTS; i++) {
+            tickets[i] = queue.agent(items[i], tickets[i], false);
+        }
+    }
+
+    // Start a round, queue up all the actors, alternately at the front and
+    // back, stop every fourth one, then take the rest until the round ends.
+    @Benchmark
+    @OperationsPerInvocation(AGENTS + ACTORS)
+    public int churn() {
+        queue.command('.');
+        for (int i = AGENTS; i < items.length; i++) {
+            tickets[i] = queue.join(items[i], tickets[i], (i & 1) == 0);
+        }
+        for (int i = AGENTS; i < items.length; i += 4) {
+            queue.stop(items[i], tickets[i]);
+        }
+        int n = 0;
+        while (queue.next() != null) n++;
+        return n;
+    }
+
+    // Run just these benchmarks.
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[] { "QueueBench" });
+    }
+}
@@ -0,0 +1,139 @@
+package wanderer;
+import model.*;
+import model.Level;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* LevelBench class. Free and open source: see licence.txt.
+
+JMH benchmarks for the Wanderer simulation: loading each level file, step
+throughput on levels with heavy cascades of moving entities, and full replay of
+each recording.  This is in the wanderer package, in a separate source tree, so
+that it can use the package-private entity classes and the Test class.  Build
+and run with make bench. */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LevelBench {
+
+    // Load a level file.
+    @State(Scope.Thread)
+    public static class Load {
+        @Param({
+            "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13",
+            "14", "15", "16", "17", "18", "19", "20", "21", "22", "23", "24",
+            "25", "26", "27", "28", "29", "30", "31", "32", "33", "34", "35",
+            "36", "37", "38", "39", "40", "41", "42", "43", "44", "45", "46",
+            "47", "48", "49", "50", "51", "52", "53", "54", "55", "56", "57",
+            "58", "59", "60", "t1", "t2"
+        })
+        public String level;
+        Level<Entity> game;
+
+        @Setup
+        public void setup() { game = new Level<>(new Test()::hatch); }
+    }
+
+    @Benchmark
+    public Level<Entity> load(Load s) {
+        s.game.load("/levels/" + s.level + ".txt");
+        return s.game;
+    }
+
+    // Carry out the commands from a recording one at a time, restoring the
+    // start of the level from a snapshot after the last one.  The levels are
+    // the ones whose recordings take the most steps per command.  Steps are
+    // counted, so JMH reports steps per second as well as commands per second.
+    @State(Scope.Thread)
+    public static class Step {
+        @Param({"27a", "46a", "57a", "50a"})
+        public String test;
+        Level<Entity> game;
+        Snapshot start;
+        char[] commands;
+        int next;
+
+        @Setup(org.openjdk.jmh.annotations.Level.Trial)
+        public void setup() {
+            Test t = new Test();
+            game = new Level<>(t::hatch);
+            String name = test.substring(0, test.length() - 1);
+            game.load("/levels/" + name + ".txt");
+            start = game.snapshot();
+            List<String> lines = t.read("/tests/" + test + ".txt");
+            commands = new char[lines.size()];
+            for (int i = 0; i < commands.length; i++) {
+                commands[i] = lines.get(i).charAt(0);
+            }
+        }
+
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Steps {
+        public long steps;
+
+        @Setup(org.openjdk.jmh.annotations.Level.Iteration)
+        public void reset() { steps = 0; }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void step(Step s, Steps c) {
+        if (s.next == s.commands.length) {
+            s.game.restore(s.start);
+            s.next = 0;
+        }
+        s.game.command(s.commands[s.next++]);
+        long before = s.game.steps();
+        while (s.game.step()) { }
+        c.steps += s.game.steps() - before;
+    }
+
+    // Replay a whole recording, checking the results.
+    @State(Scope.Thread)
+    public static class Replay {
+        @Param({
+            "t1a", "t2a", "t2b", "1a", "1b", "1c", "1d", "2a", "3a", "4a",
+            "5a", "6a", "6b", "7a", "8a", "9a", "10a", "10b", "11a", "12a",
+            "13a", "14a", "15a", "15b", "16a", "17a", "18a", "19a", "20a",
+            "21a", "22a", "23a", "24a", "25a", "26a", "27a", "28a", "29a",
+            "30a", "31a", "32a", "33a", "34a", "35a", "36a", "37a", "38a",
+            "39a", "40a", "41a", "42a", "43a", "44a", "45a", "46a", "47a",
+            "48a", "49a", "50a", "51a", "52a", "53a", "54a", "55a", "56a",
+            "57a", "58a", "59a", "60a", "60b"
+        })
+        public String test;
+        Test t = new Test();
+        Level<Entity> game;
+        String path;
+        List<String> lines;
+
+        @Setup
+        public void setup() {
+            game = new Level<>(t::hatch);
+            String name = test.substring(0, test.length() - 1);
+            path = "/levels/" + name + ".txt";
+            lines = t.read("/tests/" + test + ".txt");
+        }
+    }
+
+    @Benchmark
+    public Level<Entity> replay(Replay s) {
+        s.game.load(s.path);
+        s.t.replay(s.game, s.test, s.lines, 0, s.lines.size());
+        return s.game;
+    }
+
+    // Run just these benchmarks.
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(new String[] { "LevelBench" });
+    }
+}
@@ -16,7 +16,10 @@ class Item extends Cell<Item> {
 
     // Count stars, remember the player.
     public void wake() {
-        if (type() == Star) add(STARS, 1);
+        if (type() == Star) {
+            add(STARS, 1);
+            reserve(Space);
+        }
         else if (type() == Player) {
             set(PLAYER, this);
             agent(true);
@@ -8,12 +8,25 @@ specific entity classes, and provides some core methods for entities to use in
 order to define their behaviour.
 
 The aim is to make the code in extending classes simple and self-contained. Most
-of the methods are delegated to hatchery, state, queue and grid objects.  It is
-assumed that the grid has inert wall entities round the edge as sentinels, so
+of the methods are delegated to the pool, state, queue and grid objects, which
+an entity reaches through a single context object shared by the whole level.  It
+is assumed that the grid has inert wall entities round the edge as sentinels, so
 that operations involving neighbours are never out of bounds.  A cell's x, y
 fields are private so that they can be kept consistent. This class guarantees
 that an entity's coordinates match its grid location.
 
+An entity class can declare that its objects are shareable, meaning without
+private fields which last beyond a turn, e.g. walls, earth or spaces.  Then a
+level uses one shared object to stand for all the entities of that type, and its
+static terrain costs little more than the grid's slots.  A shared entity has no
+fixed position, slot or ticket of its own.  Its position is set from the grid
+whenever it is found by another entity or spawned, and from the queue when it is
+taken from the queue to act.  Its slot is found by looking in the grid cell at
+that position, and the queue gives it a ticket for that position.  It can be
+hidden, e.g. when earth is eaten, but shouldn't be kept and used after other
+entities have been found, and it should keep its own position while it acts, in
+case a nested turn finds it elsewhere.
+
 This class is generic.  The parameter E stands for a game-specific Entity base
 class which extends this one.  This eases the implementation of entity classes,
 e.g. one entity knows that another has class Entity rather than Cell, without
@@ -21,23 +34,21 @@ casting, and can call game-specific methods on it. */
 
 public abstract class Cell<E extends Cell<E>> {
     private char type;
-    private Hatchery<E> hatchery;
-    private State<E> state;
-    private Queue<E> queue;
-    private Grid<E> grid;
+    private Context<E> context;
+    private int slot, ticket, id;
+    private boolean shared;
     public int x, y;
 
     // Initialize straight after construction.  NOT public.
-    void init(
-        char t, Hatchery<E> h, State<E> s, Queue<E> q, Grid<E> g, int x0, int y0
-    ) {
+    void init(char t, Context<E> c, int x0, int y0) {
         type = t;
-        hatchery = h;
-        state = s;
-        queue = q;
-        grid = g;
+        context = c;
+        slot = ticket = -1;
+        shared = false;
         x = x0;
         y = y0;
+        if (c != null) id = c.pool.enrol(thisE(), t);
+        reset();
     }
 
     // Lifecycle method to be provided by entity classes.
@@ -48,6 +59,49 @@ public abstract class Cell<E extends Cell<E>> {
     // An entity's action when given a turn.
     public abstract void act();
 
+    // Give an entity a turn, i.e. get it to act.  Use this rather than calling
+    // act directly, so that the entity's private fields can be logged first,
+    // and any change to them can be included in the level's hash.  The fields
+    // are saved before and after, on the end of the pool's scratch snapshot,
+    // which nested turns leave as they found it, and the key is only found
+    // again if they differ.
+    public final void turn() {
+        Log log = context.grid.log();
+        if (log != null) log.fields(this);
+        Snapshot s = context.pool.scratch();
+        int start = s.size;
+        save(s);
+        int end = s.size;
+        act();
+        if (end == start) return;
+        s.size = end;
+        save(s);
+        boolean same = s.size == 2 * end - start;
+        for (int i = 0; same && i < end - start; i++) {
+            same = s.data[start + i] == s.data[end + i];
+        }
+        if (! same) fields(Hash.key(s.data, end, s.size));
+        s.size = start;
+    }
+
+    // Lifecycle method to be overridden by entity classes which have no private
+    // fields lasting beyond a turn, so that one object can be shared by all the
+    // entities of the same type in a level.  Default: not shareable.
+    public boolean shareable() { return false; }
+
+    // Lifecycle method to be overridden by entity classes which have private
+    // fields.  Set them to their initial values.  This is called whenever an
+    // entity is initialised, because entity objects are recycled, e.g. from
+    // one level to the next.  Default: nothing to reset.
+    public void reset() { }
+
+    // Lifecycle methods to be overridden by entity classes which have private
+    // fields that change during play.  Save the fields in a snapshot, or
+    // restore them in the same order from a snapshot reader.  Default: nothing
+    // to save.
+    public void save(Snapshot s) { }
+    public void restore(Snapshot.Reader r) { }
+
     // Allow one entity to find out the type of another.
     public char type() { return type; }
 
@@ -66,40 +120,76 @@ public abstract class Cell<E extends Cell<E>> {
 
     // Spawn an entity with given code, at the same position, but hidden.
     // Unlike hatching/waking, this is after the level has started.
+    // The shared entity is used if the type is shareable, or else a spare if
+    // there is one, e.g. one reserved while waking.
     public E spawn(char type) {
-        E e = hatchery.hatch(type);
-        e.init(type, hatchery, state, queue, grid, x, y);
+        E e = context.pool.shared(type);
+        if (e != null) return at(e, x, y);
+        e = context.pool.hatch(type);
+        e.init(type, context, x, y);
+        Cell<E> c = e;
+        if (c.shareable()) {
+            c.shared = true;
+            context.pool.share(type, e);
+        }
         return e;
     }
 
-    // Core methods to access global variables via the state object.
+    // Reserve a spare entity of a given type, e.g. when waking, so that
+    // spawning one later during play doesn't allocate memory.
+    public void reserve(char type) { context.pool.reserve(type); }
+
+    // Core methods to access global variables via the state object. A game
+    // can register each variable name once, to get a handle for fast access.
 
-    public void set(String v, E e) { state.set(v, e); }
-    public void set(String v, String s) { state.set(v, s); }
-    public void set(String v, int n) { state.set(v, n); }
-    public E entity(String v) { return state.entity(v); }
-    public String string(String v) { return state.string(v); }
-    public int count(String v) { return state.count(v); }
-    public void add(String v, int n) { state.add(v, n); }
+    public static int variable(String name) { return State.variable(name); }
+    public void set(int v, E e) { context.state.set(v, e); }
+    public void set(int v, String s) { context.state.set(v, s); }
+    public void set(int v, int n) { context.state.set(v, n); }
+    public E entity(int v) { return context.state.entity(v); }
+    public String string(int v) { return context.state.string(v); }
+    public int count(int v) { return context.state.count(v); }
+    public void add(int v, int n) { context.state.add(v, n); }
+    public void subtract(int v, int n) { add(v, -n); }
+
+    // The same methods, using string ids, for convenience.
+
+    public void set(String v, E e) { context.state.set(v, e); }
+    public void set(String v, String s) { context.state.set(v, s); }
+    public void set(String v, int n) { context.state.set(v, n); }
+    public E entity(String v) { return context.state.entity(v); }
+    public String string(String v) { return context.state.string(v); }
+    public int count(String v) { return context.state.count(v); }
+    public void add(String v, int n) { context.state.add(v, n); }
     public void subtract(String v, int n) { add(v, -n); }
 
     // Delegate core queue operations to the queue object.
 
     // Join the queue of active entities. Hi priority means push to the front.
-    public void queue(boolean hi) { queue.join(thisE(), hi); }
+    public void queue(boolean hi) {
+        hold(context.queue.join(thisE(), ticket(), hi));
+    }
     // Become an autonomous agent. Hi priority means push to the front.
-    public void agent(boolean hi) { queue.agent(thisE(), hi); }
+    public void agent(boolean hi) {
+        hold(context.queue.agent(thisE(), ticket(), hi));
+    }
     // Stop being an agent, and stop acting by leaving the queue.
-    public void stop() { queue.stop(thisE()); }
+    public void stop() { context.queue.stop(thisE(), ticket()); }
     // End the game, by making all entities inactive.
-    public void end() { queue.end(); }
+    public void end() { context.queue.end(); }
     // Provide the next command, starting the next round of activity.
-    public char command() { return queue.command(); }
+    public char command() { return context.queue.command(); }
 
     // Delegate core positional operations to the grid.
 
     // Find the neighbour entity in the given direction.
-    public E find(Direction d) { return grid.front(x + d.x, y + d.y); }
+    public E find(Direction d) { return find(x, y, d); }
+    // Find the neighbour entity in the given direction from a given position,
+    // e.g. one kept by a shared entity while it acts.
+    public E find(int x0, int y0, Direction d) {
+        int u = x0 + d.x, v = y0 + d.y;
+        return at(context.grid.front(u, v), u, v);
+    }
     // Move in the given direction.
     public void move(Direction d) { move(find(d)); }
     // Move to a new position given by another entity.
@@ -107,33 +197,41 @@ public abstract class Cell<E extends Cell<E>> {
     // Move an entity to another position.
     private void move(int u, int v) {
         hide();
-        grid.show(u, v, thisE());
+        keep(context.grid.show(u, v, thisE(), slot()));
         x = u; y = v;
     }
     // Create a background entity behind this one.
-    public void background(char code) { grid.back(x, y, spawn(code)); }
+    public void background(char code) {
+        Cell<E> c = spawn(code);
+        c.keep(context.grid.back(x, y, c.thisE(), c.slot()));
+    }
     // Find the entity at the back of the grid cell.
-    public E background() { return grid.back(x, y); }
+    public E background() { return at(context.grid.back(x, y), x, y); }
     // Replace this entity by one of a different type.
     public void mutate(char t) { hide(); spawn(t).show(); }
     // Move to the back of the grid cell.
-    public void moveBack() { hide(); grid.back(x, y, thisE()); }
+    public void moveBack() {
+        hide();
+        keep(context.grid.back(x, y, thisE(), slot()));
+    }
     // Hide, i.e. go off grid.
-    public void hide() { grid.hide(x, y, thisE()); }
+    public void hide() { context.grid.hide(x, y, thisE(), found()); }
     // Show, i.e. stop hiding and go back on the grid.
-    public void show() { grid.show(x, y, thisE()); }
+    public void show() { keep(context.grid.show(x, y, thisE(), slot())); }
     // Show at a given position.
     public void show(int u, int v) {
         if (! hidden()) throw new Error("Already showing");
-        grid.show(u,v,thisE());
+        keep(context.grid.show(u, v, thisE(), slot()));
         x = u; y = v;
     }
     // Check if the entity is off the grid.
-    public boolean hidden() { return grid.hidden(x, y, thisE()); }
+    public boolean hidden() {
+        return context.grid.hidden(x, y, thisE(), found());
+    }
     // Set the grid's changed flag.
-    public void changed(boolean b) { grid.changed(b); }
+    public void changed(boolean b) { context.grid.changed(b); }
     // Check the grid's changed flag.
-    public boolean changed() { return grid.changed(); }
+    public boolean changed() { return context.grid.changed(); }
     // Swap two entities (for purely 2D games).
     public void swap(E with) {
         int x0 = x, y0 = y;
@@ -142,6 +240,61 @@ public abstract class Cell<E extends Cell<E>> {
         c.move(x0, y0);
     }
 
+    // Support for shared entities.  Find the slot to pass to the grid when
+    // showing the entity, which is -1 if it is shared, so that each of its
+    // cells gets its own slot.  Find its slot when it is in the grid, looking
+    // in the cell if it is shared.  Keep a slot issued by the grid, unless the
+    // entity is shared.
+    private int slot() { return shared ? -1 : slot; }
+    private int found() {
+        return shared ? context.grid.slotAt(x, y, thisE()) : slot;
+    }
+    private void keep(int s) { if (! shared) slot = s; }
+
+    // Find the ticket to pass to the queue, which for a shared entity is the
+    // one for its grid position.  Hold a ticket issued by the queue, unless
+    // the entity is shared.
+    private int ticket() {
+        if (! shared) return ticket;
+        return context.queue.ticketAt(thisE(), context.grid.index(x, y));
+    }
+    private void hold(int t) { if (! shared) ticket = t; }
+
+    // Give an entity found in the grid at a given position that position, if
+    // it is shared, and return it.
+    static <E extends Cell<E>> E at(E e, int u, int v) {
+        Cell<E> c = e;
+        if (c != null && c.shared) { c.x = u; c.y = v; }
+        return e;
+    }
+
+    // Support for snapshots (NOT public).  Find the entity's index in the
+    // roster, place it off grid at a given position, forgetting its slot and
+    // ticket, or put it back at the back of a grid cell.  Or set its position
+    // when undoing, to match the grid.  Or check or set whether it is shared.
+    int id() { return id; }
+    void place(int x0, int y0) { x = x0; y = y0; slot = ticket = -1; }
+    void locate(int x0, int y0) { x = x0; y = y0; }
+    void putBack(int x0, int y0) {
+        x = x0; y = y0;
+        keep(context.grid.back(x, y, thisE(), slot()));
+    }
+    boolean shared() { return shared; }
+    void share(boolean b) { shared = b; }
+
+    // Find the hash key for the entity's private fields, or update the grid's
+    // copy of it, e.g. after undoing (NOT public).
+    long key() {
+        Snapshot s = context.pool.scratch();
+        int start = s.size;
+        save(s);
+        long key = Hash.key(s.data, start, s.size);
+        s.size = start;
+        return key;
+    }
+    void rekey() { fields(key()); }
+    private void fields(long key) { context.grid.fields(slot(), thisE(), key); }
+
     // Testing
     private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
     static class Entity extends Cell<Entity> {
@@ -150,7 +303,7 @@ public abstract class Cell<E extends Cell<E>> {
     }
     public static void main(String[] args) {
         Entity e = new Entity();
-        e.init('@', null, null, null, null, 0, 0);
+        e.init('@', null, 0, 0);
         claim(e.type() == '@' && e.x() == 0 && e.y() == 0);
         System.out.println("Cell class OK");
     }
@@ -0,0 +1,53 @@
+package model;
+
+/* Context class. Free and open source: see licence.txt.
+
+A context holds the objects which make up a level: the pool of entities, the
+state variables, the queue and the grid.  There is one context per level
+object, and each entity reaches them through a single reference to it, rather
+than holding four references of its own.  That keeps entities small, makes
+initialising an entity quicker, and means that moving an entity from one level
+object to another, e.g. to a clone, involves changing one reference.
+
+This class is generic to avoid cyclic dependencies, and to allow for a
+game-specific Entity base class. */
+
+class Context<E> {
+    final Pool<E> pool;
+    final State<E> state;
+    final Queue<E> queue;
+    final Grid<E> grid;
+
+    Context(Pool<E> p, State<E> s, Queue<E> q, Grid<E> g) {
+        pool = p;
+        state = s;
+        queue = q;
+        grid = g;
+    }
+
+    // Testing: check that an entity reaches the pool, state and grid
+    // through its context.
+    private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
+    static class Item extends Cell<Item> {
+        public void wake() {}
+        public void act() {}
+    }
+    public static void main(String[] args) {
+        int[] hatched = new int[1];
+        Pool<Item> pool = new Pool<>(t -> { hatched[0]++; return new Item(); });
+        State<Item> state = new State<>();
+        Grid<Item> grid = new Grid<>(2, 2);
+        Context<Item> c = new Context<>(pool, state, new Queue<>(), grid);
+        Item e = pool.hatch('a');
+        e.init('a', c, 1, 1);
+        e.set("CONTEXT", 3);
+        claim(state.count("CONTEXT") == 3 && e.count("CONTEXT") == 3);
+        e.reserve('b');
+        claim(hatched[0] == 2);
+        Item b = e.spawn('b');
+        claim(hatched[0] == 2 && b.type() == 'b' && b.x() == 1);
+        e.show();
+        claim(grid.front(1, 1) == e && e.find(Direction.Here) == e);
+        System.out.println("Context class OK");
+    }
+}
@@ -1,5 +1,6 @@
 package model;
 import java.util.*;
+import java.util.function.*;
 
 /* Grid class. Free and open source: see licence.txt.
 
@@ -7,19 +8,54 @@ Provide a grid for entities to inhabit.  At each (x,y) coordinate, there may be
 several entities in front of each other.  If the coordinates of an entity are
 kept consistent with its grid location, the grid guarantees that an entity
 appears at most once in its cell. The grid has a flag to keep track of whether
-anything has changed recently.
+anything has changed recently, and a set of dirty cells which have been touched
+since they were last cleaned, so that changes can be found without scanning.
 
 An entity can hide, off the grid.  It retains its grid position, but the only
 action available is to show itself, i.e. go back on the grid at its old
 position.
 
+The cells are stored compactly in flat arrays, indexed in the standard (x,y)
+order.  Each cell is a doubly linked list of slots from front to back.  The
+first time an entity is added, it is given a slot, which it keeps and passes
+back, so that hiding an entity, or checking whether it is hidden, takes constant
+time without the grid calling any entity methods.  A slot stays with its entity
+until the grid is reset, whether the entity is showing or hidden, and records
+the entity's position, or its last position if hidden, encoded as ~index.
+Consistency checks, which walk the list for a cell, are only made in debug mode.
+
+If the grid is given a log, each change to a cell's list is recorded, together
+with the neighbouring slots and the slot's previous position, so that it can be
+reverted or reapplied.
+
+The grid keeps a Zobrist hash of its contents, with a key for each entity
+according to its position, its depth in its cell, and its kind, so that states
+with the same entities in the same places have the same hash.  A slot records
+the kind of its entity when the slot is issued.  Showing an entity at the front
+of a cell changes the depths of the others, so each change to a cell rehashes
+the whole cell, which only has a few entities in it.  A slot also records a
+key for its entity's private fields, which is combined with the entity's key,
+so that the fields are hashed according to where the entity is rather than to
+which object it is.  The level updates the key when the fields change.
+
 This class is generic to avoid cyclic dependencies, and to allow for a
 game-specific Entity class. */
 
 class Grid<E> {
     private int width, height;
-    private boolean changed;
-    private Deque<E>[][] cells;
+    private boolean changed, debug;
+    private int[] fronts, backs;
+    private E[] items;
+    private int[] places, nexts, prevs, kinds;
+    private long[] fields;
+    private int slots;
+    private ToIntFunction<? super E> kind = e -> 0;
+    private ToLongFunction<? super E> field = e -> 0;
+    private long hash;
+    private boolean[] marks;
+    private int[] dirty;
+    private int dirtyCount;
+    private Log log;
 
     Grid(int w, int h) {
         reset(w, h);
@@ -30,60 +66,178 @@ class Grid<E> {
         width = w;
         height = h;
         changed = false;
-        newArray();
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                cells[x][y] = new ArrayDeque<E>();
-            }
+        if (fronts == null || fronts.length != w * h) {
+            fronts = new int[w * h];
+            backs = new int[w * h];
+            marks = new boolean[w * h];
+            dirty = new int[w * h];
+            dirtyCount = 0;
         }
+        else clean();
+        Arrays.fill(fronts, -1);
+        Arrays.fill(backs, -1);
+        int n = 2 * w * h;
+        if (items == null || items.length < n) newArray(n);
+        Arrays.fill(items, 0, slots, null);
+        slots = 0;
+        hash = 0;
     }
 
-    // Initialise the cells array, bypassing Java's generic problems.
+    // Initialise the slot arrays, bypassing Java's generic problems.
     @SuppressWarnings("unchecked")
-    private void newArray() { cells = new Deque[width][height]; }
+    private void newArray(int n) {
+        items = (E[]) new Object[n];
+        places = new int[n];
+        nexts = new int[n];
+        prevs = new int[n];
+        kinds = new int[n];
+        fields = new long[n];
+    }
+
+    // Switch consistency checking on or off.
+    void debug(boolean b) { debug = b; }
+
+    // Record changes in a log, or stop recording if null.
+    void log(Log g) { log = g; }
+    Log log() { return log; }
+
+    // Set the function which gives the kind of an entity, for hashing.
+    void kinds(ToIntFunction<? super E> f) { kind = f; }
+
+    // Set the function which gives the key for an entity's private fields.
+    void fields(ToLongFunction<? super E> f) { field = f; }
+
+    // Change the key for the private fields of an entity, with the slot it
+    // was given, rehashing its cell if it is on the grid.
+    void fields(int s, E e, long key) {
+        if (s < 0 || s >= slots || items[s] != e || fields[s] == key) return;
+        int i = places[s];
+        if (i >= 0) hash ^= hash(i);
+        fields[s] = key;
+        if (i >= 0) hash ^= hash(i);
+    }
+
+    // Find the hash of the grid's contents.
+    long hash() { return hash; }
+
+    // Find the position of a cell in the flat arrays, e.g. to stand for the
+    // cell elsewhere, or the coordinates of a position.
+    int index(int x, int y) { return x * height + y; }
+    int indexX(int i) { return i / height; }
+    int indexY(int i) { return i % height; }
 
     // Find the front entity in a cell.
     E front(int x, int y) {
-        return cells[x][y].peekFirst();
+        int s = fronts[index(x, y)];
+        return (s < 0) ? null : items[s];
     }
 
     // Find the back entity in a cell.
     E back(int x, int y) {
-        return cells[x][y].peekLast();
+        int s = backs[index(x, y)];
+        return (s < 0) ? null : items[s];
     }
 
-    // Push an off-grid entity onto the front of its cell.
-    void show(int x, int y, E e) {
-        changed = true;
-        if (cells[x][y].contains(e)) throw new Error("Already in grid");
-        cells[x][y].addFirst(e);
+    // Push an off-grid entity, with the slot it was given or -1, onto the front
+    // of its cell. Return its slot.
+    int show(int x, int y, E e, int s) {
+        int i = index(x, y);
+        s = slot(i, e, s);
+        link(i, s, -1, fronts[i]);
+        return s;
     }
 
-    // Check if an entity is off the grid.
-    boolean hidden(int x, int y, E e) {
-        return ! cells[x][y].contains(e);
+    // Check if an entity, with the slot it was given, is off the grid.
+    boolean hidden(int x, int y, E e, int s) {
+        if (s < 0 || s >= slots) return true;
+        return items[s] != e || places[s] != index(x, y);
     }
 
-    // Add an entity at the back of a given cell.
-    void back(int x, int y, E e) {
-        changed = true;
-        if (cells[x][y].contains(e)) throw new Error("Already in grid");
-        cells[x][y].addLast(e);
+    // Add an off-grid entity, with the slot it was given or -1, at the back of
+    // a given cell. Return its slot.
+    int back(int x, int y, E e, int s) {
+        int i = index(x, y);
+        s = slot(i, e, s);
+        link(i, s, backs[i], -1);
+        return s;
     }
 
     // Pop the front entity from a cell.
     private E pop(int x, int y) {
         changed = true;
-        return cells[x][y].pollFirst();
+        int s = fronts[index(x, y)];
+        if (s < 0) return null;
+        E e = items[s];
+        hide(x, y, e, s);
+        return e;
+    }
+
+    // Remove an entity, with the slot it was given, from its cell, so it is not
+    // in the grid.
+    void hide(int x, int y, E e, int s) {
+        if (hidden(x, y, e, s)) throw new Error("Not in the grid");
+        unlink(places[s], s, ~places[s]);
     }
 
-    // Remove an entity from its cell, so it is not in the grid.
-    void hide(int x, int y, E e) {
+    // Link a slot into a cell's list between two given slots, which may be -1
+    // at the front or back.  The slot's entity is then in the cell.
+    void link(int i, int s, int p, int q) {
         changed = true;
-        boolean ok = cells[x][y].remove(e);
-        if (! ok) throw new Error("Not in the grid");
+        touch(i);
+        hash ^= hash(i);
+        int old = places[s];
+        places[s] = i;
+        prevs[s] = p;
+        nexts[s] = q;
+        if (p >= 0) nexts[p] = s;
+        else fronts[i] = s;
+        if (q >= 0) prevs[q] = s;
+        else backs[i] = s;
+        hash ^= hash(i);
+        if (log != null) log.add(Log.GRID_LINK, i, s, p, q, old,0,0, null,null);
+        if (debug) check(i);
     }
 
+    // Unlink a slot from a cell's list, so its entity is off the grid, with a
+    // given encoded position, normally ~i.
+    void unlink(int i, int s, int place) {
+        changed = true;
+        touch(i);
+        hash ^= hash(i);
+        int p = prevs[s], q = nexts[s];
+        if (p >= 0) nexts[p] = q;
+        else fronts[i] = q;
+        if (q >= 0) prevs[q] = p;
+        else backs[i] = p;
+        places[s] = place;
+        hash ^= hash(i);
+        if (log != null) {
+            log.add(Log.GRID_UNLINK, i, s, p, q, 0,0,0, null,null);
+        }
+        if (debug) check(i);
+    }
+
+    // Walk through the slots in a cell from front to back, for snapshots.  Find
+    // the front slot, or the next slot behind a given one, or -1, and the
+    // entity in a slot.
+    int frontSlot(int x, int y) { return fronts[index(x, y)]; }
+    int nextSlot(int s) { return nexts[s]; }
+    E item(int s) { return items[s]; }
+
+    // Find the slot of an entity in a cell, or -1 if it isn't there, e.g. for
+    // an entity which is shared between cells.
+    int slotAt(int x, int y, E e) {
+        for (int s = fronts[index(x, y)]; s >= 0; s = nexts[s]) {
+            if (items[s] == e) return s;
+        }
+        return -1;
+    }
+
+    // Find the position of a slot, or its last position if it is hidden.
+    int slotX(int s) { return place(s) / height; }
+    int slotY(int s) { return place(s) % height; }
+    private int place(int s) { return places[s] < 0 ? ~places[s] : places[s]; }
+
     // Set the changed flag.
     void changed(boolean b) { changed = b; }
 
@@ -91,26 +245,188 @@ class Grid<E> {
     // was set to false.
     boolean changed() { return changed; }
 
+    // Sort the dirty cells into standard (x,y) order, and return how many there
+    // are.  If there are a lot, it is quicker to scan than to sort.
+    int dirty() {
+        int n = dirtyCount;
+        if (n * n > marks.length) {
+            n = 0;
+            for (int i = 0; i < marks.length; i++) if (marks[i]) dirty[n++] = i;
+            return n;
+        }
+        for (int k = 1; k < n; k++) {
+            int i = dirty[k], j = k - 1;
+            while (j >= 0 && dirty[j] > i) { dirty[j+1] = dirty[j]; j--; }
+            dirty[j+1] = i;
+        }
+        return n;
+    }
+
+    // Find the coordinates of the k'th dirty cell, after sorting.
+    int dirtyX(int k) { return dirty[k] / height; }
+    int dirtyY(int k) { return dirty[k] % height; }
+
+    // Forget the dirty cells.
+    void clean() {
+        for (int k = 0; k < dirtyCount; k++) marks[dirty[k]] = false;
+        dirtyCount = 0;
+    }
+
+    // Mark a cell as dirty.
+    private void touch(int i) {
+        if (marks[i]) return;
+        marks[i] = true;
+        dirty[dirtyCount++] = i;
+    }
+
+    // Find the hash of the entities in a cell.
+    private long hash(int i) {
+        long h = 0;
+        int depth = 0;
+        for (int s = fronts[i]; s >= 0; s = nexts[s]) {
+            long k = Hash.key(Hash.CELL, i, (depth++ << 16) | kinds[s]);
+            if (fields[s] != 0) k = Hash.mix(k ^ fields[s]);
+            h ^= k;
+        }
+        return h;
+    }
+
+    // Check that an entity, with the slot it was given, is off the grid, and
+    // find its slot, giving it a new one if necessary.
+    private int slot(int i, E e, int s) {
+        if (debug && contains(i, e)) throw new Error("Already in grid");
+        if (s >= 0 && s < slots && items[s] == e) {
+            if (places[s] >= 0) throw new Error("Already in grid");
+            return s;
+        }
+        if (slots == items.length) grow();
+        s = slots++;
+        items[s] = e;
+        places[s] = ~i;
+        kinds[s] = kind.applyAsInt(e);
+        fields[s] = field.applyAsLong(e);
+        return s;
+    }
+
+    // Double the number of slots available.
+    private void grow() {
+        int n = items.length;
+        items = Arrays.copyOf(items, 2 * n);
+        places = Arrays.copyOf(places, 2 * n);
+        nexts = Arrays.copyOf(nexts, 2 * n);
+        prevs = Arrays.copyOf(prevs, 2 * n);
+        kinds = Arrays.copyOf(kinds, 2 * n);
+        fields = Arrays.copyOf(fields, 2 * n);
+    }
+
+    // Check if an entity is in a cell, by walking the list.
+    private boolean contains(int i, E e) {
+        for (int s = fronts[i]; s >= 0; s = nexts[s]) {
+            if (items[s] == e) return true;
+        }
+        return false;
+    }
+
+    // Check the consistency of the list for a cell.
+    private void check(int i) {
+        int prev = -1;
+        for (int s = fronts[i]; s >= 0; s = nexts[s]) {
+            if (prevs[s] != prev || places[s] != i || s >= slots) {
+                throw new Error("Inconsistent grid");
+            }
+            for (int t = nexts[s]; t >= 0; t = nexts[t]) {
+                if (items[t] == items[s]) throw new Error("Already in grid");
+            }
+            prev = s;
+        }
+        if (backs[i] != prev) throw new Error("Inconsistent grid");
+    }
+
     // Testing
     private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
     public static void main(String[] args) {
         Grid<String> grid = new Grid<String>(2,2);
+        grid.debug(true);
         String a = "a", b = "b";
-        grid.show(1,1,b);
-        grid.show(1,1,a);
+        grid.show(1,1,b,-1);
+        grid.show(1,1,a,-1);
         claim(grid.front(1,1) == a);
         claim(grid.back(1,1) == b);
         claim(grid.pop(1,1) == a);
         claim(grid.pop(1,1) == b);
-        grid.show(1,1,b);
-        grid.show(1,1,a);
-        grid.hide(1,1,b);
+        int sb = grid.show(1,1,b,-1);
+        int sa = grid.show(1,1,a,-1);
+        grid.hide(1,1,b,sb);
+        claim(grid.hidden(1,1,b,sb));
+        claim(! grid.hidden(1,1,a,sa));
+        claim(grid.hidden(0,1,a,sa));
         claim(grid.pop(1,1) == a);
         claim(grid.pop(1,1) == null);
+        claim(grid.show(1,1,a,sa) == sa && grid.front(1,1) == a);
+        grid.unlink(grid.index(1,1), sa, ~grid.index(1,1));
+        claim(grid.slotX(sa) == 1 && grid.slotY(sa) == 1);
+        claim(grid.hidden(1,1,a,sa));
+        grid.link(grid.index(1,1), sa, -1, -1);
+        claim(! grid.hidden(1,1,a,sa));
+        claim(grid.pop(1,1) == a);
         grid.changed(false);
         claim(! grid.changed());
-        grid.show(1,1,a);
+        grid.show(1,1,a,-1);
         claim(grid.changed());
+        grid.back(1,1,b,-1);
+        claim(grid.front(1,1) == a && grid.back(1,1) == b);
+        int s = grid.frontSlot(1,1);
+        claim(grid.item(s) == a && grid.item(grid.nextSlot(s)) == b);
+        claim(grid.slotAt(1,1,b) == grid.nextSlot(s) && grid.slotAt(0,1,b) < 0);
+        claim(grid.nextSlot(grid.nextSlot(s)) < 0);
+        grid.clean();
+        grid.show(1,0,a+b,-1);
+        grid.show(0,1,b+a,-1);
+        grid.show(1,0,b+b,-1);
+        claim(grid.dirty() == 2);
+        claim(grid.dirtyX(0) == 0 && grid.dirtyY(0) == 1);
+        claim(grid.dirtyX(1) == 1 && grid.dirtyY(1) == 0);
+        grid.clean();
+        claim(grid.dirty() == 0);
+        // The hash depends only on the contents.
+        Grid<String> other = new Grid<String>(2,2);
+        grid.kinds(x -> x.charAt(0));
+        other.kinds(x -> x.charAt(0));
+        grid.reset(2,2);
+        claim(grid.hash() == 0);
+        int sc = grid.show(1,0,"c",-1);
+        grid.show(1,0,"d",-1);
+        claim(grid.hash() != 0);
+        other.back(1,0,"d",-1);
+        claim(other.hash() != grid.hash());
+        other.back(1,0,"c",-1);
+        claim(other.hash() == grid.hash());
+        grid.hide(1,0,"c",sc);
+        claim(other.hash() != grid.hash());
+        grid.back(1,0,"c",sc);
+        claim(other.hash() == grid.hash());
+        // Field keys are hashed by position, not by slot.
+        int sd = grid.slotAt(1,0,"d");
+        grid.fields(sd, "d", 5);
+        claim(other.hash() != grid.hash());
+        other.fields(other.slotAt(1,0,"d"), "d", 5);
+        claim(other.hash() == grid.hash());
+        grid.fields(sd, "d", 0);
+        other.fields(x -> x.equals("e") ? 7 : 0);
+        grid.fields(x -> x.equals("e") ? 7 : 0);
+        other.show(1,1,"e",-1);
+        claim(other.hash() != grid.hash());
+        int se = grid.show(0,1,"e",-1);
+        grid.hide(0,1,"e",se);
+        grid.fields(sd, "d", 5);
+        grid.show(1,1,"e",se);
+        claim(other.hash() == grid.hash());
+        for (int i = 0; i < 20; i++) grid.back(0,0,"x" + i,-1);
+        claim(grid.front(0,0).equals("x0") && grid.back(0,0).equals("x19"));
+        grid.show(1,1,a,-1);
+        boolean caught = false;
+        try { grid.show(1,1,a,-1); } catch (Error e) { caught = true; }
+        claim(caught);
         System.out.println("Grid class OK");
     }
 }
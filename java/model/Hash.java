@@ -0,0 +1,60 @@
+package model;
+
+/* Hash class. Free and open source: see licence.txt.
+
+Provide the keys for Zobrist-style hashing of a level's state.  The hash of a
+state is the exclusive-or of keys for its features, e.g. an entity of a given
+type at a given position and depth, or a counter with a given value.  When a
+feature changes, its old key and its new key are xor'ed into the hash, so the
+hash is kept up to date in constant time per change, and two identical states
+have the same hash however they were reached.  A default feature, such as a
+zero counter or an empty string, is given no key, so that it needn't be hashed
+at all.
+
+Keys are generated on demand by mixing the numbers which describe a feature,
+using the finaliser of the SplitMix64 generator, rather than being looked up in
+tables of random numbers, so they need no memory and are the same in every run
+of the program, provided the numbers which describe the features are.  That is
+why state variables are described by the hash codes of their names rather than
+by their handles. */
+
+class Hash {
+    static final int CELL = 1, ENTITY = 2, COUNT = 3, STRING = 4, FIELDS = 5;
+
+    // Find the key for a feature, given its kind and two numbers.
+    static long key(int kind, int a, int b) {
+        return mix(mix(mix(kind) + a) + b);
+    }
+
+    // Find the key for an entity's private fields, given the range of ints it
+    // saves, or 0 if it has none.  The key doesn't say which entity it is, so
+    // that it can be combined with the entity's position instead.
+    static long key(int[] data, int from, int to) {
+        if (from == to) return 0;
+        long h = mix(FIELDS);
+        for (int i = from; i < to; i++) h = mix(h) + data[i];
+        return mix(h);
+    }
+
+    // Scramble the bits of a number.
+    static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // Testing
+    private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
+    public static void main(String[] args) {
+        claim(key(CELL, 3, 4) == key(CELL, 3, 4));
+        claim(key(CELL, 3, 4) != key(CELL, 4, 3));
+        claim(key(CELL, 3, 4) != key(COUNT, 3, 4));
+        int[] data = {1, 2, 3};
+        claim(key(data, 1, 1) == 0 && key(data, 0, 3) != 0);
+        claim(key(data, 0, 2) != key(data, 1, 3));
+        claim(key(data, 0, 3) != key(data, 0, 2));
+        claim(mix(0) != 0 && mix(1) != mix(2));
+        System.out.println("Hash class OK");
+    }
+}
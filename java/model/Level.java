@@ -5,31 +5,63 @@ import java.util.*;
 /* Level class. Free and open source: see licence.txt.
 
 A level object reads in a level file, and drives the mechanics of the game. A
-level object can be reused by calling the load method repeatedly. The command
-method starts off a command, and the step method carries out an amount of
-processing suitable for one tick of an animation.  The command ends when step
-returns false.  The play can be recorded in a file by calling the record method
-at the start of the level, and the stop method at the end.  The tests method can
-be called on a game-specific level object, to carry out comprehensive
-replay-based testing from recordings. */
+level object can be reused by calling the load method repeatedly, and parsed
+level files are cached, so that reloading a recently used level only involves
+hatching and waking its entities.  Level files are read from the level pack
+described in the Pack class, if it is on the class path.  Nothing rebuilds the
+pack automatically, so rather than trusting a stale one, the pack is ignored and
+the text files are read if any of them has changed since the pack was built.
+
+The command method starts off a command, and the step method carries out an
+amount of processing suitable for one tick of an animation.  The command ends
+when step returns false.  The play can be recorded in a file by calling the
+record method at the start of the level, and the stop method at the end, either
+as text or in the binary format described in the Replay class.  The tests
+method can be called on a game-specific level object, to carry out
+comprehensive replay-based testing from recordings in either format.
+
+Between commands, a snapshot of the level can be taken, and the level can later
+be restored from it, without reloading the level file.  If the level is made
+undoable, the changes made by each command are logged, so that commands can be
+undone and redone, one at a time.
+
+A hash of the level's state is kept up to date, combining hashes of the grid
+contents, including the private fields of the entities on the grid, and of the
+state variables.  Fields are keyed by where their entities are, not by which
+entity objects they belong to, so identical states reached by different routes,
+e.g. with entities spawned in a different order, have the same hash, and they
+can be detected after each command in constant time.  An entity's fields are
+only rehashed when they change during its turn. */
 
 public class Level<E extends Cell<E>> {
-    private Hatchery<E> hatchery;
+    private Pool<E> pool;
     private Grid<E> grid;
     private State<E> state;
     private Queue<E> queue;
+    private Context<E> context;
     private int width, height, limit;
     private String name, title;
     private char cells[][];
     private StringBuilder changes;
+    private Replay line = new Replay();
     private PrintWriter out;
+    private Replay.Writer writer;
+    private Log log;
+    private long steps;
+    private int loads;
+    private Snapshot.Reader reader = new Snapshot.Reader();
 
     // Create a level object, passing in a hatchery for creating entities.
     public Level(Hatchery<E> h) {
-        hatchery = h;
+        pool = new Pool<E>(h);
         grid = new Grid<E>(2, 2);
         state = new State<E>();
         queue = new Queue<E>();
+        context = new Context<E>(pool, state, queue, grid);
+        changes = new StringBuilder();
+        grid.kinds(e -> e.type());
+        grid.fields(e -> e.key());
+        state.kinds(e -> e.type());
     }
 
     // Return the size, name, title and move limit after loading.
@@ -40,60 +72,366 @@ public class Level<E extends Cell<E>> {
     public int limit() { return limit; }
 
     // Delegate methods to the grid and state objects, for viewing.
-    public E front(int x, int y) { return grid.front(x, y); }
+    public E front(int x, int y) { return Cell.at(grid.front(x, y), x, y); }
     public E entity(String id) { return state.entity(id); }
     public String string(String id) { return state.string(id); }
     public int count(String id) { return state.count(id); }
+    public E entity(int v) { return state.entity(v); }
+    public String string(int v) { return state.string(v); }
+    public int count(int v) { return state.count(v); }
+
+    // Switch the grid's consistency checks on or off, e.g. for testing.
+    public void debug(boolean b) { grid.debug(b); }
+
+    // Switch undo and redo on or off, from the next load or restore.
+    public void undoable(boolean b) {
+        log = b ? new Log() : null;
+        if (log != null) log.pause(true);
+        grid.log(log);
+        state.log(log);
+        queue.log(log);
+    }
 
-    // Load up a level file. The new level grid is not assumed to be the same
-    // size as the old one.  The limit on the number of moves is recorded in the
-    // state, so that it can be picked up by entities.
+    // Load up a level file, using its cached template if there is one. The new
+    // level grid is not assumed to be the same size as the old one.  The limit
+    // on the number of moves is recorded in the state, so that it can be picked
+    // up by entities.
     public void load(String path) {
+        loads++;
         name = extractFrom(path);
-        InputStream is = getClass().getResourceAsStream(path);
-        if (is == null) throw new Error("Can't open " + path);
-        Reader r = new InputStreamReader(is);
-        Scanner sc = new Scanner(r);
-        levelData(sc);
-        sc.close();
-        changes = new StringBuilder();
+        Template t = Template.get(path);
+        if (t == null) {
+            t = read(path);
+            Template.put(path, t);
+        }
+        width = t.width;
+        height = t.height;
+        limit = t.limit;
+        title = t.title;
+        cells = t.cells(cells);
+        if (limit == 0) limit = 1000;
+        changes.setLength(0);
+        line.clear('\0');
         grid.reset(width, height);
         state.reset();
         queue.reset();
+        pool.reset();
+        if (log != null) log.pause(true);
         state.add("MOVES", limit);
         hatch();
         wake();
         copy();
+        startLog();
     }
 
     // Accept a command from the user interface, and pass it on.  Start
     // recording the new command.
     public void command(char cmd) {
+        if (log != null) log.begin();
         queue.command(cmd);
         changes.setLength(0);
         changes.append(cmd);
+        line.clear(cmd);
     }
 
     // Take one step, e.g. on an animation tick.  Get entities to take actions
     // until one action causes a change. Return false if the effects of the
-    // command have finished.
+    // command have finished.  Once a level is loaded, commands and steps don't
+    // allocate memory, unless recording.
     public boolean step() {
+        steps++;
         grid.changed(false);
-        E e = queue.next();
+        E e = next();
         while (! grid.changed() && e != null) {
-            e.act();
-            if (! grid.changed()) e = queue.next();
+            e.turn();
+            if (! grid.changed()) e = next();
         }
         if (grid.changed()) recordChanges();
-        if (e == null && out != null) out.println(changes.toString());
-        return e != null;
+        if (e != null) return true;
+        line.hash(hash());
+        if (out != null) out.println(changes.toString());
+        if (writer != null) writer.write(line);
+        return false;
+    }
+
+    // Get the changes caused so far by the current command, in the format of a
+    // line of a recording.
+    public String changes() { return changes.toString(); }
+
+    // Get the changes caused by the latest command, as a line of a recording
+    // which is reused for each command.  Its hash is set when the command ends.
+    public Replay line() { return line; }
+
+    // Find the hash of the current state of the level, e.g. to detect repeated
+    // positions between commands.
+    public long hash() { return grid.hash() ^ state.hash(); }
+
+    // Find the hash, ignoring the values of the given counters, e.g. the score
+    // or the moves remaining, so that states which differ only in those match.
+    public long hash(int... counters) {
+        long h = hash();
+        for (int v : counters) h ^= state.key(v);
+        return h;
+    }
+
+    // Find the total number of steps taken, e.g. for measuring throughput.
+    public long steps() { return steps; }
+
+    // Count the loads and restores, which change the level without recording
+    // the changes, e.g. so that a display knows when to redraw everything.
+    public int loads() { return loads; }
+
+    // Undo the latest command, between commands.  The changes on screen are
+    // available from the changes method, without a command character. Return
+    // false if there is nothing to undo.
+    public boolean undo() {
+        int k = (log == null) ? -1 : log.undo();
+        if (k < 0) return false;
+        log.pause(true);
+        grid.changed(false);
+        for (int r = log.end(k) - 1; r >= log.start(k); r--) revert(r);
+        changes.setLength(0);
+        line.clear('\0');
+        recordChanges();
+        log.pause(false);
+        return true;
     }
 
-    // Record changes and their effects in the given writer.
+    // Redo the latest undone command.  Return false if there is nothing to
+    // redo, e.g. because a new command has been given since the undo.
+    public boolean redo() {
+        int k = (log == null) ? -1 : log.redo();
+        if (k < 0) return false;
+        log.pause(true);
+        grid.changed(false);
+        for (int r = log.start(k); r < log.end(k); r++) reapply(r);
+        changes.setLength(0);
+        line.clear('\0');
+        recordChanges();
+        log.pause(false);
+        return true;
+    }
+
+    // Record changes and their effects in the given writer, as text or in
+    // binary, or stop recording if null.
     public void record(PrintWriter p) {
         out = p;
     }
 
+    public void record(Replay.Writer w) {
+        writer = w;
+    }
+
+    // Take a snapshot of the level, between commands.
+    public Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        snapshot(s);
+        return s;
+    }
+
+    // Take a snapshot of the level, reusing an existing snapshot object.  The
+    // roster of entities is saved, with their positions and private fields,
+    // then the contents of the grid cells, the state and the queue.
+    public void snapshot(Snapshot s) {
+        s.clear(name);
+        s.put(width);
+        s.put(height);
+        int n = pool.size();
+        for (int i = 0; i < n; i++) {
+            E e = pool.member(i);
+            s.type(e.type());
+            s.put(e.x());
+            s.put(e.y());
+            s.put(e.shared());
+            e.save(s);
+        }
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) saveCell(s, x, y);
+        }
+        int vs = State.size();
+        s.put(vs);
+        for (int v = 0; v < vs; v++) {
+            E e = state.entity(v);
+            s.put(e == null ? -1 : e.id());
+            s.put(state.count(v));
+            s.string(v, state.string(v));
+        }
+        s.put(queue.command());
+        saveList(s, true);
+        saveList(s, false);
+    }
+
+    // Restore the level from a snapshot taken of the same level, possibly by
+    // another level object.  Entities in the roster are reused where their
+    // types match, and the rest are hatched afresh.  The snapshot is read with
+    // the level's own reader and isn't changed, so several level objects, e.g.
+    // on different threads, can restore from the same snapshot at once.
+    public void restore(Snapshot s) {
+        if (! s.name.equals(name)) {
+            throw new Error("Snapshot of " + s.name + " can't restore " + name);
+        }
+        loads++;
+        Snapshot.Reader r = reader;
+        r.open(s, 0);
+        if (r.getInt() != width || r.getInt() != height) {
+            throw new Error("Snapshot of " + s.name + " has the wrong size");
+        }
+        if (log != null) log.pause(true);
+        int n = 0;
+        while (n < s.count && n < pool.size()) {
+            if (pool.member(n).type() != s.types[n]) break;
+            n++;
+        }
+        pool.truncate(n);
+        for (int i = n; i < s.count; i++) {
+            char t = s.types[i];
+            E e = pool.hatch(t);
+            if (e == null) throw new Error("Unknown type '" + t + "'");
+            e.init(t, context, 0, 0);
+        }
+        for (int i = 0; i < s.count; i++) {
+            E e = pool.member(i);
+            e.place(r.getInt(), r.getInt());
+            e.share(r.getBoolean());
+            if (e.shared()) pool.share(e.type(), e);
+            e.restore(r);
+        }
+        grid.reset(width, height);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                int count = r.getInt();
+                for (int k = 0; k < count; k++) {
+                    pool.member(r.getInt()).putBack(x, y);
+                }
+            }
+        }
+        state.reset();
+        int vs = r.getInt();
+        for (int v = 0; v < vs; v++) {
+            int id = r.getInt();
+            if (id >= 0) state.set(v, pool.member(id));
+            state.set(v, r.getInt());
+            state.set(v, s.strings[v]);
+        }
+        queue.reset();
+        queue.restore((char) r.getInt());
+        restoreList(r, true);
+        restoreList(r, false);
+        changes.setLength(0);
+        line.clear('\0');
+        copy();
+        grid.changed(false);
+        startLog();
+    }
+
+    // Forget the logged commands and start logging, if undoable.
+    private void startLog() {
+        if (log == null) return;
+        log.clear();
+        log.pause(false);
+    }
+
+    // Revert the change made by a log record.
+    @SuppressWarnings("unchecked")
+    private void revert(int r) {
+        int a = log.arg(r, 0), b = log.arg(r, 1), c = log.arg(r, 2);
+        int d = log.arg(r, 3), e = log.arg(r, 4), f = log.arg(r, 5);
+        switch (log.tag(r)) {
+            case Log.GRID_LINK: grid.unlink(a, b, e); locate(b); break;
+            case Log.GRID_UNLINK: grid.link(a, b, c, d); locate(b); break;
+            case Log.QUEUE_LINK: queue.unlink(a, b, c, f); break;
+            case Log.QUEUE_UNLINK:
+                queue.link(a, b, c, d, e, f, log.arg(r, 6));
+                break;
+            case Log.COMMAND: queue.restore((char) a); break;
+            case Log.ENTITY: state.set(a, (E) log.object(r, 0)); break;
+            case Log.COUNT: state.set(a, b); break;
+            case Log.STRING: state.set(a, (String) log.object(r, 0)); break;
+            case Log.FIELDS: swap(r); break;
+        }
+    }
+
+    // Reapply the change made by a log record.
+    @SuppressWarnings("unchecked")
+    private void reapply(int r) {
+        int a = log.arg(r, 0), b = log.arg(r, 1), c = log.arg(r, 2);
+        int d = log.arg(r, 3), f = log.arg(r, 5);
+        switch (log.tag(r)) {
+            case Log.GRID_LINK: grid.link(a, b, c, d); locate(b); break;
+            case Log.GRID_UNLINK: grid.unlink(a, b, ~a); break;
+            case Log.QUEUE_LINK:
+                queue.link(a, b, c, d, log.arg(r, 4), f, log.arg(r, 6));
+                break;
+            case Log.QUEUE_UNLINK: queue.unlink(a, b, c, f); break;
+            case Log.COMMAND: queue.restore((char) b); break;
+            case Log.ENTITY: state.set(a, (E) log.object(r, 1)); break;
+            case Log.COUNT: state.set(a, c); break;
+            case Log.STRING: state.set(a, (String) log.object(r, 1)); break;
+            case Log.FIELDS: swap(r); break;
+        }
+    }
+
+    // Swap an entity's private fields with those in a log record, updating
+    // the hash.
+    private void swap(int r) {
+        Cell<?> c = (Cell<?>) log.object(r, 0);
+        log.swap(r);
+        c.rekey();
+    }
+
+    // Make the position of the entity in a slot match the grid.
+    private void locate(int s) {
+        grid.item(s).locate(grid.slotX(s), grid.slotY(s));
+    }
+
+    // Take the next entity from the queue, at the place it joined from if it is
+    // shared.
+    private E next() { return at(queue.next(), queue.place()); }
+
+    // Give a shared entity the position with a given grid index, or -1 for an
+    // entity which isn't shared, and return it.
+    private E at(E e, int i) {
+        if (i < 0) return e;
+        return Cell.at(e, grid.indexX(i), grid.indexY(i));
+    }
+
+    // Save the contents of a grid cell as a count followed by ids, front to
+    // back.
+    private void saveCell(Snapshot s, int x, int y) {
+        int count = 0;
+        for (int t = grid.frontSlot(x, y); t >= 0; t = grid.nextSlot(t)) {
+            count++;
+        }
+        s.put(count);
+        for (int t = grid.frontSlot(x, y); t >= 0; t = grid.nextSlot(t)) {
+            s.put(grid.item(t).id());
+        }
+    }
+
+    // Save the agents list or the actors queue as a count followed by ids,
+    // each with its grid index if the entity is shared, or else -1.
+    private void saveList(Snapshot s, boolean agents) {
+        int count = 0;
+        for (int n = queue.firstNode(agents); n >= 0; n = queue.nextNode(n)) {
+            count++;
+        }
+        s.put(count);
+        for (int n = queue.firstNode(agents); n >= 0; n = queue.nextNode(n)) {
+            s.put(queue.holder(n).id());
+            s.put(queue.place(n));
+        }
+    }
+
+    // Restore the agents list or the actors queue, in order.
+    private void restoreList(Snapshot.Reader r, boolean agents) {
+        int count = r.getInt();
+        for (int k = 0; k < count; k++) {
+            E e = at(pool.member(r.getInt()), r.getInt());
+            if (agents) e.agent(false);
+            else e.queue(false);
+        }
+    }
+
     // Replay-based testing from recording files.  The first argument is an
     // array of test file paths, and the second is an array of corresponding
     // level file paths. A test file contains a recording of some moves in its
@@ -118,52 +456,87 @@ public class Level<E extends Cell<E>> {
         return path.substring(start, end);
     }
 
+    // Read the template for a level file, from the level pack if it is there
+    // and up to date.
+    private Template read(String path) {
+        Pack pack = Pack.standard();
+        int record = (pack == null) ? -1 : pack.find(path);
+        if (record >= 0) return levelData(pack, record);
+        InputStream is = getClass().getResourceAsStream(path);
+        if (is == null) throw new Error("Can't open " + path);
+        Reader r = new InputStreamReader(is);
+        Scanner sc = new Scanner(r);
+        Template t = levelData(sc);
+        sc.close();
+        return t;
+    }
+
     // Read the level data from a scanner.  The data starts with a line giving
     // the width, height and time limit, then there is a title line, then there
     // is a grid of entity character codes in matrix (y,x) order.
-    private void levelData(Scanner sc) {
+    private static Template levelData(Scanner sc) {
         String line = sc.nextLine();
         String[] parts = line.split(" ");
-        width = Integer.parseInt(parts[0]);
-        height = Integer.parseInt(parts[1]);
-        limit = Integer.parseInt(parts[2]);
-        if (limit == 0) limit = 1000;
-        title = sc.nextLine();
-        cells = new char[width][height];
-        for (int y = 0; y < height; y++) {
+        int w = Integer.parseInt(parts[0]);
+        int h = Integer.parseInt(parts[1]);
+        int limit = Integer.parseInt(parts[2]);
+        String title = sc.nextLine();
+        char[][] cells = new char[w][h];
+        for (int y = 0; y < h; y++) {
             line = sc.nextLine();
-            for (int x = 0; x < width; x++) {
+            for (int x = 0; x < w; x++) {
                 cells[x][y] = line.charAt(x);
             }
         }
+        return new Template(w, h, limit, title, cells);
+    }
+
+    // Read the level data from a record in a level pack.
+    private static Template levelData(Pack pack, int record) {
+        int w = pack.width(record), h = pack.height(record);
+        char[][] cells = new char[w][h];
+        pack.cells(record, cells);
+        return new Template(
+            w, h, pack.limit(record), pack.title(record), cells);
     }
 
-    // Create all the initial entities and put them in the grid.
+    // Create all the initial entities and put them in the grid.  For a
+    // shareable type, the first entity hatched is shared by all the cells.
     private void hatch() {
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
                 char t = cells[x][y];
-                E e = hatchery.hatch(t);
-                if (e == null) throw new Error("Unknown type '" + t + "'");
-                e.init(t, hatchery, state, queue, grid, x, y);
+                E e = pool.shared(t);
+                if (e == null) {
+                    e = pool.hatch(t);
+                    if (e == null) throw new Error("Unknown type '" + t + "'");
+                    e.init(t, context, x, y);
+                    if (e.shareable()) {
+                        e.share(true);
+                        pool.share(t, e);
+                    }
+                }
+                e.locate(x, y);
                 e.show();
             }
         }
     }
 
     // Wake all the entities.  (Do this after hatching all the entities, in case
-    // entities need to know about each other when waking.)
+    // entities need to know about each other when waking.)  Then update the
+    // hash keys of their private fields, in case waking changed them.
     private void wake() {
         for (int x=0; x<width; x++) {
             for (int y=0; y<height; y++) {
-                grid.front(x,y).wake();
+                front(x,y).wake();
             }
         }
+        for (int i = 0; i < pool.size(); i++) pool.member(i).rekey();
     }
 
     // Copy the current visible grid state into the cells array, so it can be
-    // used to track changes.  (Do this after hatching the entities, in case
-    // they cause immediate changes.)
+    // used to track changes, and clean the grid's dirty cells.  (Do this after
+    // hatching the entities, in case they cause immediate changes.)
     private void copy() {
         for (int x=0; x<width; x++) {
             for (int y=0; y<height; y++) {
@@ -171,46 +544,71 @@ public class Level<E extends Cell<E>> {
                 cells[x][y] = e.type();
             }
         }
+        grid.clean();
     }
 
     // Record the changes caused by the immediately preceding step. Also update
     // the cells array ready to track the next set of changes.  The changes
     // during a single step are regarded as simultaneous and are recorded in a
-    // standard (x,y) order.
+    // standard (x,y) order.  Only the cells which the grid has marked as dirty
+    // need to be checked.
     private void recordChanges() {
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                char t = grid.front(x,y).type();
-                if (t == cells[x][y]) continue;
-                changes.append(" " + x + "," + y + "," + t);
-                cells[x][y] = t;
-            }
+        int n = grid.dirty();
+        for (int k = 0; k < n; k++) {
+            int x = grid.dirtyX(k), y = grid.dirtyY(k);
+            char t = grid.front(x,y).type();
+            if (t == cells[x][y]) continue;
+            changes.append(' ').append(x).append(',').append(y);
+            changes.append(',').append(t);
+            line.add(x, y, t);
+            cells[x][y] = t;
         }
+        grid.clean();
     }
 
-    // Test a level according to a recording file. Each line consists of the
-    // direction key the user pressed, followed by the changes caused on screen.
-    // Each change is a coordinate pair followed by the character code of the
-    // new entity at that position.
+    // Test a level according to a recording file, stopping at the first line
+    // which fails.
     private void test(String file) {
+        List<String> failures = check(file);
+        if (! failures.isEmpty()) throw new Error(failures.get(0));
+    }
+
+    // Check the loaded level against a recording file. Each line consists of
+    // the direction key the user pressed, followed by the changes caused on
+    // screen. Each change is a coordinate pair followed by the character code
+    // of the new entity at that position.  Carry on after a mismatch, so that
+    // all the lines which fail are reported, and return their descriptions.
+    // The file is a resource, and may be a text or binary recording.
+    public List<String> check(String file) {
         InputStream is = getClass().getResourceAsStream(file);
-        Scanner in = new Scanner(is);
-        int lineNumber = 1;
-        while (in.hasNextLine()) {
-            String line = in.nextLine();
-            char key = line.charAt(0);
-            command(key);
+        if (is == null) throw new Error("Can't open " + file);
+        try { return check(is); }
+        catch (IOException e) { throw new Error("Can't read " + file); }
+    }
+
+    // Check the loaded level against a recording from a stream, and close it.
+    // If the recording has hashes, check the state after each command too.
+    public List<String> check(InputStream is) throws IOException {
+        Replay.Reader in = new Replay.Reader(is);
+        Replay recorded = new Replay();
+        List<String> failures = new ArrayList<>();
+        while (in.read(recorded)) {
+            command(recorded.command());
             for (boolean ok = step(); ok; ok = step()) { }
-            String newLine = changes.toString();
-            if (newLine.equals(line)) { }
-            else {
-                throw new Error(
-                "Test " + name + " fails on line " + lineNumber + "\n" +
-                "Actual:   " + newLine + "\n" +
-                "Recorded: " + line);
+            if (! line.matches(recorded)) {
+                failures.add(
+                "Test " + name + " fails on line " + in.number() + "\n" +
+                "Actual:   " + line + "\n" +
+                "Recorded: " + recorded);
+            }
+            else if (recorded.hashed() && recorded.hash() != line.hash()) {
+                failures.add(
+                "Test " + name + " fails on line " + in.number() + "\n" +
+                "State hash differs");
             }
-            lineNumber++;
         }
+        in.close();
+        return failures;
     }
 
     // No testing.  Call the tests method from a game-specific class.
@@ -0,0 +1,144 @@
+package model;
+import java.util.*;
+
+/* Log class. Free and open source: see licence.txt.
+
+A log records the changes made to a level's grid, state and queue, so that the
+effects of commands can be undone and redone.  Each change is a record holding a
+tag, some ints and a couple of objects.  Records are reversible: they hold
+enough information to revert a change, once the later changes have been
+reverted, or to reapply it, once the earlier ones have been reapplied.  Records
+are grouped by command, so undoing or redoing a command takes time proportional
+to the number of changes it made, rather than to the size of the level.
+
+The private fields of an entity are saved just before it acts.  Reverting or
+reapplying that record swaps the saved values with the current ones, so that
+the same record serves for both undo and redo.
+
+The log just stores records, and the level interprets them, so that the grid,
+state and queue don't need to know about each other.  Nothing is recorded while
+the log is paused, e.g. while a level is being loaded, or changes are being
+undone. */
+
+class Log {
+    static final int
+        GRID_LINK = 0, GRID_UNLINK = 1, QUEUE_LINK = 2, QUEUE_UNLINK = 3,
+        COMMAND = 4, ENTITY = 5, COUNT = 6, STRING = 7, FIELDS = 8;
+    private static final int INTS = 8, OBJECTS = 2;
+    private int[] ints = new int[INTS * 256];
+    private Object[] objects = new Object[OBJECTS * 256];
+    private int size, done, count;
+    private int[] marks = new int[64], fieldMarks = new int[64];
+    private Snapshot fields = new Snapshot(), spare = new Snapshot();
+    private Snapshot.Reader reader = new Snapshot.Reader();
+    private boolean paused;
+
+    // Forget all the records, e.g. after loading a level.
+    void clear() {
+        Arrays.fill(objects, 0, OBJECTS * size, null);
+        size = done = count = 0;
+        marks[0] = fieldMarks[0] = 0;
+        fields.clear(null);
+    }
+
+    // Stop or start recording.
+    void pause(boolean b) { paused = b; }
+
+    // Start recording a new command, discarding any undone commands which could
+    // otherwise have been redone.
+    void begin() {
+        if (paused) return;
+        Arrays.fill(objects, OBJECTS * marks[done], OBJECTS * size, null);
+        size = marks[done];
+        fields.size = fieldMarks[done];
+        done++;
+        count = done;
+        if (done == marks.length) {
+            marks = Arrays.copyOf(marks, 2 * done);
+            fieldMarks = Arrays.copyOf(fieldMarks, 2 * done);
+        }
+        marks[done] = size;
+        fieldMarks[done] = fields.size;
+    }
+
+    // Step back over the latest command, or forward over the next undone one.
+    // Return the index of the command, or -1 if there isn't one.
+    int undo() { return (done == 0) ? -1 : --done; }
+    int redo() { return (done == count) ? -1 : done++; }
+
+    // Find the range of records for a given command.
+    int start(int k) { return marks[k]; }
+    int end(int k) { return marks[k+1]; }
+
+    // Get the tag, the i'th int (from 0), or the i'th object of a record.
+    int tag(int r) { return ints[INTS * r]; }
+    int arg(int r, int i) { return ints[INTS * r + 1 + i]; }
+    Object object(int r, int i) { return objects[OBJECTS * r + i]; }
+
+    // Add a record.
+    void add(
+        int tag, int a, int b, int c, int d, int e, int f, int g,
+        Object o, Object p
+    ) {
+        if (paused) return;
+        if (INTS * (size + 1) > ints.length) {
+            ints = Arrays.copyOf(ints, 2 * ints.length);
+            objects = Arrays.copyOf(objects, 2 * objects.length);
+        }
+        int i = INTS * size, j = OBJECTS * size;
+        ints[i] = tag;
+        ints[i+1] = a; ints[i+2] = b; ints[i+3] = c; ints[i+4] = d;
+        ints[i+5] = e; ints[i+6] = f; ints[i+7] = g;
+        objects[j] = o;
+        objects[j+1] = p;
+        size++;
+        marks[done] = size;
+    }
+
+    // Record the private fields of an entity which is about to act, if any.
+    void fields(Cell<?> c) {
+        if (paused) return;
+        int start = fields.size;
+        c.save(fields);
+        int n = fields.size - start;
+        if (n == 0) return;
+        add(FIELDS, start, n, 0, 0, 0, 0, 0, c, null);
+        fieldMarks[done] = fields.size;
+    }
+
+    // Swap the private fields saved in a record with the entity's current ones.
+    void swap(int r) {
+        Cell<?> c = (Cell<?>) object(r, 0);
+        int start = arg(r, 0), n = arg(r, 1);
+        spare.clear(null);
+        c.save(spare);
+        reader.open(fields, start);
+        c.restore(reader);
+        System.arraycopy(spare.data, 0, fields.data, start, n);
+    }
+
+    // Testing
+    private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
+    public static void main(String[] args) {
+        Log log = new Log();
+        log.clear();
+        log.begin();
+        for (int i = 0; i < 300; i++) {
+            log.add(COUNT, i, 0, 1, 0, 0, 0, 0, null, null);
+        }
+        log.begin();
+        log.add(STRING, 2, 0, 0, 0, 0, 0, 0, "a", "b");
+        claim(log.undo() == 1 && log.start(1) == 300 && log.end(1) == 301);
+        claim(log.tag(300) == STRING && log.object(300, 1).equals("b"));
+        claim(log.undo() == 0 && log.end(0) == 300 && log.arg(299, 0) == 299);
+        claim(log.undo() == -1);
+        claim(log.redo() == 0 && log.redo() == 1 && log.redo() == -1);
+        log.undo();
+        log.begin();
+        claim(log.end(1) == 300 && log.redo() == -1);
+        log.pause(true);
+        log.add(COUNT, 0, 0, 0, 0, 0, 0, 0, null, null);
+        claim(log.end(1) == 300);
+        System.out.println("Log class OK");
+    }
+}
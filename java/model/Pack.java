@@ -0,0 +1,232 @@
+package model;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/* Pack class. Free and open source: see licence.txt.
+
+A pack holds a folder of level files, precompiled into a single binary file, so
+that a level can be loaded without opening and parsing its text file.  The pack
+is built by running this class with the folder and the pack file as arguments,
+e.g. from the makefile:
+
+    java -cp ../bin model.Pack ../bin/levels ../bin/levels.pack
+
+The pack starts with a magic number and a count, followed by an index giving
+the resource path of each level, e.g. /levels/27.txt, and the position of its
+record.  Each record holds the width, height, move limit and title, followed by
+the cell codes, one byte each, in (x,y) order.
+
+When a level is loaded, the pack is found on the class path as /levels.pack and
+memory mapped, once, and shared by all level objects.  If it is inside a jar, it
+is read into memory instead.  The index is read into a map when the pack is
+opened, and after that, reading a level involves no parsing.  Levels which are
+not in the pack, e.g. custom ones, are read from their text files as before.
+The pack should be rebuilt whenever the level files change, e.g. with make pack.
+In case it isn't, a pack which is a plain file is ignored if any of the level
+files it was built from is a plain file which has been changed since. */
+
+class Pack {
+    private static final int MAGIC = 0x57504B31;
+    private static final String RESOURCE = "/levels.pack";
+    private static Pack standard;
+    private static boolean opened;
+    private ByteBuffer buffer;
+    private Map<String,Integer> records = new HashMap<>();
+
+    // Create a pack from a buffer holding its contents.
+    Pack(ByteBuffer b) {
+        buffer = b;
+        if (b.getInt(0) != MAGIC) throw new Error("Not a level pack");
+        int n = b.getInt(4), p = 8;
+        for (int i = 0; i < n; i++) {
+            int length = b.getShort(p);
+            records.put(text(p + 2, length), b.getInt(p + 2 + length));
+            p = p + 2 + length + 4;
+        }
+    }
+
+    // Find the standard pack on the class path, or return null if there isn't
+    // one.  It is opened the first time this is called.
+    static synchronized Pack standard() {
+        if (opened) return standard;
+        opened = true;
+        URL url = Pack.class.getResource(RESOURCE);
+        if (url == null) return null;
+        try {
+            Pack pack = new Pack(map(url));
+            boolean file = url.getProtocol().equals("file");
+            if (file && pack.stale(new File(url.toURI()).lastModified())) {
+                return null;
+            }
+            standard = pack;
+        }
+        catch (IOException | URISyntaxException e) {
+            throw new Error("Can't read " + RESOURCE);
+        }
+        return standard;
+    }
+
+    // Check whether any of the level files the pack was built from is a plain
+    // file which has been changed since a given time.
+    private boolean stale(long built) throws URISyntaxException {
+        for (String path : records.keySet()) {
+            URL url = Pack.class.getResource(path);
+            if (url == null || ! url.getProtocol().equals("file")) continue;
+            if (new File(url.toURI()).lastModified() > built) return true;
+        }
+        return false;
+    }
+
+    // Map a pack file into memory, or read it if it isn't a file.
+    private static ByteBuffer map(URL url)
+    throws IOException, URISyntaxException {
+        if (! url.getProtocol().equals("file")) {
+            InputStream in = url.openStream();
+            ByteBuffer b = ByteBuffer.wrap(in.readAllBytes());
+            in.close();
+            return b;
+        }
+        FileChannel ch = FileChannel.open(Paths.get(url.toURI()));
+        ByteBuffer b = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        ch.close();
+        return b;
+    }
+
+    // Find the record for a level, given its resource path, or return -1.
+    int find(String path) {
+        Integer r = records.get(path);
+        return (r == null) ? -1 : r;
+    }
+
+    // Get the width, height, move limit and title from a record.
+    int width(int r) { return buffer.getShort(r); }
+    int height(int r) { return buffer.getShort(r + 2); }
+    int limit(int r) { return buffer.getInt(r + 4); }
+    String title(int r) { return text(r + 10, buffer.getShort(r + 8)); }
+
+    // Copy the cell codes from a record into an array of the right size.
+    void cells(int r, char[][] cells) {
+        int w = width(r), h = height(r);
+        int p = r + 10 + buffer.getShort(r + 8);
+        for (int x = 0; x < w; x++) {
+            char[] column = cells[x];
+            for (int y = 0; y < h; y++) column[y] = (char) buffer.get(p++);
+        }
+    }
+
+    // Read a UTF-8 string of a given length in bytes, at a given position.
+    private String text(int p, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) bytes[i] = buffer.get(p + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Build a pack from level files, given their resource paths and contents.
+    static byte[] build(List<String> paths, List<String> texts) {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        DataOutputStream ix = new DataOutputStream(index);
+        DataOutputStream dx = new DataOutputStream(data);
+        try {
+            int size = 8;
+            for (String path : paths) size += 2 + bytes(path).length + 4;
+            ix.writeInt(MAGIC);
+            ix.writeInt(paths.size());
+            for (int i = 0; i < paths.size(); i++) {
+                byte[] name = bytes(paths.get(i));
+                ix.writeShort(name.length);
+                ix.write(name);
+                ix.writeInt(size + dx.size());
+                record(dx, paths.get(i), texts.get(i));
+            }
+            ix.write(data.toByteArray());
+        }
+        catch (IOException e) { throw new Error(e); }
+        return index.toByteArray();
+    }
+
+    // Parse a level file, in the format described in the Level class, and
+    // write its record.
+    private static void record(DataOutputStream out, String path, String text)
+    throws IOException {
+        String[] lines = text.split("\r?\n");
+        String[] parts = lines[0].split(" ");
+        int w = Integer.parseInt(parts[0]), h = Integer.parseInt(parts[1]);
+        int limit = Integer.parseInt(parts[2]);
+        if (lines.length < h + 2) throw new Error("Too few lines in " + path);
+        byte[] title = bytes(lines[1]);
+        out.writeShort(w);
+        out.writeShort(h);
+        out.writeInt(limit);
+        out.writeShort(title.length);
+        out.write(title);
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) {
+                char c = lines[y + 2].charAt(x);
+                if (c > 127) throw new Error("Bad cell code in " + path);
+                out.writeByte(c);
+            }
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Build a pack from the .txt files in a folder.
+    private static void build(File folder, File pack) throws IOException {
+        File[] files = folder.listFiles((d, n) -> n.endsWith(".txt"));
+        if (files == null) throw new Error("Can't read " + folder);
+        Arrays.sort(files);
+        List<String> paths = new ArrayList<>(), texts = new ArrayList<>();
+        for (File f : files) {
+            paths.add("/" + folder.getName() + "/" + f.getName());
+            byte[] b = Files.readAllBytes(f.toPath());
+            texts.add(new String(b, StandardCharsets.UTF_8));
+        }
+        Files.write(pack.toPath(), build(paths, texts));
+    }
+
+    // Testing
+    private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
+    private static void test() throws Exception {
+        String a = "3 2 0\r\nTitle A\r\n#@#\r\n#.#\r\n";
+        String b = "2 3 50\nTitle \u00e9\n##\n@.\n##\n";
+        byte[] bytes = build(List.of("/levels/a.txt", "/levels/b.txt"),
+            List.of(a, b));
+        File f = File.createTempFile("levels", ".pack");
+        f.deleteOnExit();
+        Files.write(f.toPath(), bytes);
+        Pack pack = new Pack(map(f.toURI().toURL()));
+        int ra = pack.find("/levels/a.txt"), rb = pack.find("/levels/b.txt");
+        claim(ra > 0 && rb > 0 && pack.find("/levels/c.txt") < 0);
+        claim(pack.width(ra) == 3 && pack.height(ra) == 2);
+        claim(pack.limit(ra) == 0 && pack.title(ra).equals("Title A"));
+        claim(pack.limit(rb) == 50 && pack.title(rb).equals("Title \u00e9"));
+        char[][] cells = new char[2][3];
+        pack.cells(rb, cells);
+        claim(cells[0][1] == '@' && cells[1][1] == '.' && cells[1][2] == '#');
+        bytes = build(List.of("/levels/1.txt"), List.of(a));
+        pack = new Pack(ByteBuffer.wrap(bytes));
+        claim(! pack.stale(Long.MAX_VALUE));
+        if (Pack.class.getResource("/levels/1.txt") != null) {
+            claim(pack.stale(0));
+        }
+    }
+
+    // Build a pack from a folder of levels, or test this class if there are
+    // no arguments.
+    public static void main(String[] args) throws Exception {
+        if (args.length == 2) {
+            build(new File(args[0]), new File(args[1]));
+            return;
+        }
+        test();
+        System.out.println("Pack class OK");
+    }
+}
@@ -0,0 +1,72 @@
+package model;
+import java.io.*;
+import java.util.*;
+
+/* Playback class. Free and open source: see licence.txt.
+
+A playback object holds the commands from a recording, so that a level can be
+moved quickly to the point reached after any number of them, without graphics,
+e.g. to start watching or playing a long recording part way through.  The level
+must have been loaded before the playback object is created.
+
+Keyframes are built as the recording is played: a snapshot of the level is
+taken at the start and then after every 64 commands.  To seek to a given number
+of commands, the level carries on from where it is if that is the nearest
+point, or else it is restored from the nearest keyframe before the target, and
+then only the remaining commands are carried out.  That means any seek after
+the first takes at most 63 commands, plus any needed to build new keyframes.
+Restoring doesn't reproduce the changes of the skipped commands, so if the
+level is being recorded, only seeking forwards from the start is faithful. */
+
+public class Playback<E extends Cell<E>> {
+    private static final int INTERVAL = 64;
+    private Level<E> level;
+    private StringBuilder commands = new StringBuilder();
+    private List<Snapshot> keyframes = new ArrayList<>();
+    private int position;
+
+    // Read the commands from a recording, and close it.  Take the first
+    // keyframe from the loaded level.
+    public Playback(Level<E> l, Replay.Reader in) throws IOException {
+        level = l;
+        Replay line = new Replay();
+        while (in.read(line)) commands.append(line.command());
+        in.close();
+        keyframes.add(level.snapshot());
+    }
+
+    // Find the number of commands, the i'th command, and the number of
+    // commands carried out so far.
+    public int size() { return commands.length(); }
+    public char command(int i) { return commands.charAt(i); }
+    public int position() { return position; }
+
+    // Move the level to the point after n commands, or to the end of the
+    // recording if there aren't that many.
+    public void seek(int n) {
+        if (n > size()) n = size();
+        if (n < 0) n = 0;
+        int k = Math.min(n / INTERVAL, keyframes.size() - 1);
+        if (n < position || k * INTERVAL > position) {
+            level.restore(keyframes.get(k));
+            position = k * INTERVAL;
+        }
+        while (position < n) advance();
+    }
+
+    // Carry out the next command, and take a keyframe if one is due.
+    private void advance() {
+        level.command(commands.charAt(position));
+        while (level.step()) { }
+        position++;
+        boolean due = position % INTERVAL == 0;
+        if (due && position / INTERVAL == keyframes.size()) {
+            keyframes.add(level.snapshot());
+        }
+    }
+
+    // No testing.  Playback is tested from a game-specific class.
+    public static void main(String[] args) {
+        System.out.println("Playback class OK");
+    }
+}
@@ -0,0 +1,149 @@
+package model;
+import java.util.*;
+
+/* Pool class. Free and open source: see licence.txt.
+
+A pool wraps a game's hatchery, to provide spare entities. While a level is
+being loaded, an entity can reserve a spare of a given type, e.g. for a
+replacement it may later turn into.  Entities spawned during play are then taken
+from the pool rather than being created, so that once a level has started, the
+simulation doesn't allocate memory.  If there is no spare, a fresh entity is
+hatched in the usual way.  Spares which aren't used are kept for the next level.
+
+The pool also keeps a roster of the entities which have been initialised for
+the current level, with their types.  When a new level is loaded, or a level is
+restored from a snapshot, the entities which drop out of the roster become
+spares, so that they are recycled rather than thrown away, and restarting a
+level allocates few new objects.  Each entity has an index in the roster, e.g.
+for use in snapshots.  The pool also keeps a spare snapshot, as scratch space
+for finding the hash keys of entities' private fields.
+
+For each type whose entities are shared between cells, the pool keeps the
+entity in the roster which stands for all of them, so that entities hatched
+while loading a level and spawned during play use the same one.
+
+This class is generic to avoid cyclic dependencies, and to allow for a
+game-specific Entity base class. */
+
+class Pool<E> implements Hatchery<E> {
+    private Hatchery<E> hatchery;
+    private Object[][] spares = new Object[128][];
+    private int[] counts = new int[128];
+    private int[] wanted = new int[128];
+    private Object[] roster = new Object[64];
+    private char[] types = new char[64];
+    private Object[] shared = new Object[128];
+    private int size;
+    private Snapshot scratch = new Snapshot();
+
+    Pool(Hatchery<E> h) { hatchery = h; }
+
+    // Forget the reservations and roster for the previous level, but keep the
+    // spares, including the entities from the roster.
+    void reset() {
+        for (int t = 0; t < wanted.length; t++) wanted[t] = 0;
+        truncate(0);
+    }
+
+    // Hatch an entity, using a spare if there is one.
+    @SuppressWarnings("unchecked")
+    public E hatch(char type) {
+        if (type >= counts.length || counts[type] == 0) {
+            return hatchery.hatch(type);
+        }
+        counts[type]--;
+        E e = (E) spares[type][counts[type]];
+        spares[type][counts[type]] = null;
+        return e;
+    }
+
+    // Reserve a spare entity of a given type, for this level.
+    void reserve(char type) {
+        if (type >= counts.length) return;
+        wanted[type]++;
+        if (counts[type] >= wanted[type]) return;
+        E e = hatchery.hatch(type);
+        if (e == null) throw new Error("Unknown type '" + type + "'");
+        spare(type, e);
+    }
+
+    // Keep an entity as a spare.
+    private void spare(char type, Object e) {
+        Object[] list = spares[type];
+        if (list == null) list = spares[type] = new Object[4];
+        if (counts[type] == list.length) {
+            list = spares[type] = Arrays.copyOf(list, 2*list.length);
+        }
+        list[counts[type]++] = e;
+    }
+
+    // Add an entity of a given type to the roster, and return its index.
+    int enrol(E e, char type) {
+        if (size == roster.length) {
+            roster = Arrays.copyOf(roster, 2 * size);
+            types = Arrays.copyOf(types, 2 * size);
+        }
+        roster[size] = e;
+        types[size] = type;
+        return size++;
+    }
+
+    // Find the shared entity of a given type, or null if there isn't one.
+    @SuppressWarnings("unchecked")
+    E shared(char type) {
+        return (type < shared.length) ? (E) shared[type] : null;
+    }
+
+    // Make an entity in the roster the shared entity of its type.
+    void share(char type, E e) { if (type < shared.length) shared[type] = e; }
+
+    // Find the number of entities in the roster.
+    int size() { return size; }
+
+    // Find the i'th entity in the roster.
+    @SuppressWarnings("unchecked")
+    E member(int i) { return (E) roster[i]; }
+
+    // Provide a spare snapshot for finding keys.  Ints can be added to the end
+    // temporarily, but the size must be put back afterwards.
+    Snapshot scratch() { return scratch; }
+
+    // Cut the roster down to the given size, keeping the entities which are
+    // removed as spares, and forgetting the shared entities.
+    void truncate(int n) {
+        Arrays.fill(shared, null);
+        for (int i = n; i < size; i++) {
+            if (types[i] < counts.length) spare(types[i], roster[i]);
+        }
+        Arrays.fill(roster, n, size, null);
+        size = n;
+    }
+
+    // Testing
+    private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
+    public static void main(String[] args) {
+        Pool<String> pool = new Pool<>(t -> "" + t);
+        pool.reserve('a');
+        String a = pool.hatch('a');
+        claim(a.equals("a"));
+        claim(pool.hatch('a') != a);
+        pool.reserve('b');
+        pool.reset();
+        pool.reserve('b');
+        String b1 = pool.hatch('b');
+        String b2 = pool.hatch('b');
+        claim(b1.equals("b") && b2.equals("b") && b1 != b2);
+        claim(pool.enrol(a, 'a') == 0 && pool.enrol(b1, 'b') == 1);
+        claim(pool.size() == 2 && pool.member(1) == b1);
+        pool.truncate(1);
+        claim(pool.size() == 1 && pool.enrol(b2, 'b') == 1);
+        claim(pool.hatch('b') == b1);
+        pool.share('b', b2);
+        claim(pool.shared('b') == b2 && pool.shared('a') == null);
+        pool.reset();
+        claim(pool.shared('b') == null);
+        claim(pool.size() == 0 && pool.hatch('a') == a);
+        claim(pool.hatch('b') == b2);
+        System.out.println("Pool class OK");
+    }
+}
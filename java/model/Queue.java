@@ -12,68 +12,268 @@ user command have finished, next() returns null and the round ends.
 Entities can declare themselves to be agents, at the start or end of the agents
 list, meaning that they get a chance to act autonomously on every round.
 
+The queue of actors and the list of agents are doubly linked lists of nodes held
+in flat arrays.  An entity may appear more than once in the queue. Stopping an
+entity removes its frontmost appearance in each list, as with a Deque.  To make
+that take constant time, the first time an entity joins either list, it is
+given a ticket, which it keeps and passes back.  The ticket indexes the chain of
+the entity's own nodes in each list, in order from front to back.
+
+An entity which is shared between cells, e.g. a space, is given a ticket for
+each place it joins from, e.g. a grid index, rather than keeping one.  Then each
+place has its own chain of nodes, as if it held an entity of its own, and the
+place of an entity taken from the queue says where it is to act.
+
+If the queue is given a log, each node linked into or unlinked from a list is
+recorded, with its neighbours in the list and in its entity's chain, so that
+the change can be reverted or reapplied.
+
 This class is generic to avoid cyclic dependencies, and to allow for a
 game-specific Entity base class. */
 
 class Queue<E> {
+    private static final int ACTORS = 0, AGENTS = 1;
     private char command;
-    private Deque<E> actors = new ArrayDeque<E>();
-    private Deque<E> agents = new ArrayDeque<E>();
+    private int[] heads = {-1, -1}, tails = {-1, -1};
+    private E[] owners;
+    private int tickets;
+    private int[][] firsts = new int[2][], lasts = new int[2][];
+    private int[] holders, nexts, prevs, sames;
+    private int[] spots, placed;
+    private int free, place;
+    private Log log;
+
+    Queue() {
+        newArray(16);
+        for (int list = ACTORS; list <= AGENTS; list++) {
+            firsts[list] = new int[16];
+            lasts[list] = new int[16];
+        }
+        holders = new int[16];
+        nexts = new int[16];
+        prevs = new int[16];
+        sames = new int[16];
+        spots = new int[16];
+        placed = new int[16];
+        reset();
+    }
+
+    // Initialise the owners array, bypassing Java's generic problems.
+    @SuppressWarnings("unchecked")
+    private void newArray(int n) { owners = (E[]) new Object[n]; }
 
     // Clear the queue, ready for a new level.
     void reset() {
-        actors.clear();
-        agents.clear();
+        Arrays.fill(owners, 0, tickets, null);
+        tickets = 0;
+        for (int list = ACTORS; list <= AGENTS; list++) {
+            heads[list] = tails[list] = -1;
+        }
+        for (int n = 0; n < nexts.length; n++) nexts[n] = n + 1;
+        nexts[nexts.length - 1] = -1;
+        free = 0;
     }
 
+    // Record changes in a log, or stop recording if null.
+    void log(Log g) { log = g; }
+
     // Provide a user command to start a round.  Put the agents onto the queue
     // to give them each a chance to act.
     void command(char cmd) {
-        actors.addAll(agents);
+        for (int n = heads[AGENTS]; n >= 0; n = nexts[n]) {
+            add(ACTORS, holders[n], false);
+        }
+        if (log != null) {
+            log.add(Log.COMMAND, command, cmd, 0, 0, 0, 0, 0, null, null);
+        }
         command = cmd;
     }
 
     // Allow an entity, presumably the player, to pick up the current command.
     char command() { return command; }
 
-    // Queue up an entity, at the end or start of the queue.
-    void join(E entity, boolean hi) {
-        if (hi) actors.addFirst(entity);
-        else actors.addLast(entity);
+    // Queue up an entity, at the end or start of the queue. Return its ticket.
+    int join(E entity, int ticket, boolean hi) {
+        int t = ticket(entity, ticket);
+        add(ACTORS, t, hi);
+        return t;
     }
 
     // Become an autonomous agent, at the end or start of the agents list.
-    void agent(E entity, boolean hi) {
-        if (hi) agents.addFirst(entity);
-        else agents.addLast(entity);
+    // Return the entity's ticket.
+    int agent(E entity, int ticket, boolean hi) {
+        int t = ticket(entity, ticket);
+        add(AGENTS, t, hi);
+        return t;
     }
 
     // Take an entity from the front of the queue, or return null.
-    E next() { return actors.pollFirst(); }
+    E next() {
+        int n = heads[ACTORS];
+        if (n < 0) return null;
+        int t = holders[n];
+        remove(ACTORS, t);
+        place = spots[t];
+        return owners[t];
+    }
+
+    // Find the place of the entity most recently taken from the queue, or -1 if
+    // it isn't shared.
+    int place() { return place; }
+
+    // Find the ticket of a shared entity at a given place, issuing a new one if
+    // necessary.
+    int ticketAt(E entity, int place) {
+        if (place >= placed.length) {
+            int size = Math.max(2 * placed.length, place + 1);
+            placed = Arrays.copyOf(placed, size);
+        }
+        int t = placed[place];
+        if (valid(entity, t) && spots[t] == place) return t;
+        t = ticket(entity, -1);
+        spots[t] = place;
+        placed[place] = t;
+        return t;
+    }
 
     // Remove a dying or sleeping entity from the queue and agent list.
-    void stop(E entity) {
-        agents.remove(entity);
-        actors.remove(entity);
+    void stop(E entity, int ticket) {
+        if (! valid(entity, ticket)) return;
+        remove(AGENTS, ticket);
+        remove(ACTORS, ticket);
     }
 
+    // Walk through the actors queue or the agents list, for snapshots.  Find
+    // the first node, or the next node after a given one, or -1, and the entity
+    // which a node holds, and its place, or -1 if it isn't shared.
+    int firstNode(boolean agents) { return heads[agents ? AGENTS : ACTORS]; }
+    int nextNode(int n) { return nexts[n]; }
+    E holder(int n) { return owners[holders[n]]; }
+    int place(int n) { return spots[holders[n]]; }
+
+    // Set the current command without starting a round, when restoring or
+    // undoing.
+    void restore(char cmd) { command = cmd; }
+
     // End the game.
-    void end() { actors.clear(); agents.clear(); }
+    void end() {
+        for (int list = ACTORS; list <= AGENTS; list++) {
+            while (heads[list] >= 0) remove(list, holders[heads[list]]);
+        }
+    }
+
+    // Check whether a ticket belongs to an entity.
+    private boolean valid(E entity, int ticket) {
+        return ticket >= 0 && ticket < tickets && owners[ticket] == entity;
+    }
+
+    // Find an entity's ticket, issuing a new one if necessary.
+    private int ticket(E entity, int ticket) {
+        if (valid(entity, ticket)) return ticket;
+        if (tickets == owners.length) growTickets();
+        int t = tickets++;
+        owners[t] = entity;
+        spots[t] = -1;
+        for (int list = ACTORS; list <= AGENTS; list++) {
+            firsts[list][t] = lasts[list][t] = -1;
+        }
+        return t;
+    }
+
+    // Add a node for the entity with the given ticket at the front or back of
+    // a list, and to the front or back of the entity's own chain.
+    private void add(int list, int t, boolean hi) {
+        if (free < 0) growNodes();
+        int n = free;
+        if (hi) link(list, t, n, -1, heads[list], -1, firsts[list][t]);
+        else link(list, t, n, tails[list], -1, lasts[list][t], -1);
+    }
+
+    // Remove the frontmost node, if any, of the entity with the given ticket
+    // from a list.
+    private void remove(int list, int t) {
+        int n = firsts[list][t];
+        if (n < 0) return;
+        unlink(list, t, n, -1);
+    }
+
+    // Take the free node n and link it into a list between nodes p and q, and
+    // into the chain for ticket t between nodes cp and cn.  Any of p, q, cp, cn
+    // can be -1, at the start or end of a list or chain.
+    void link(int list, int t, int n, int p, int q, int cp, int cn) {
+        if (n != free) throw new Error("Inconsistent queue");
+        free = nexts[n];
+        holders[n] = t;
+        prevs[n] = p;
+        nexts[n] = q;
+        if (p >= 0) nexts[p] = n;
+        else heads[list] = n;
+        if (q >= 0) prevs[q] = n;
+        else tails[list] = n;
+        sames[n] = cn;
+        if (cp >= 0) sames[cp] = n;
+        else firsts[list][t] = n;
+        if (cn < 0) lasts[list][t] = n;
+        if (log != null) {
+            log.add(Log.QUEUE_LINK, list, t, n, p, q, cp, cn, null, null);
+        }
+    }
+
+    // Unlink node n from a list, and from the chain for ticket t where it comes
+    // after node cp, or -1 if it is first, and free it.
+    void unlink(int list, int t, int n, int cp) {
+        int p = prevs[n], q = nexts[n], cn = sames[n];
+        if (p >= 0) nexts[p] = q;
+        else heads[list] = q;
+        if (q >= 0) prevs[q] = p;
+        else tails[list] = p;
+        if (cp >= 0) sames[cp] = cn;
+        else firsts[list][t] = cn;
+        if (cn < 0) lasts[list][t] = cp;
+        nexts[n] = free;
+        free = n;
+        if (log != null) {
+            log.add(Log.QUEUE_UNLINK, list, t, n, p, q, cp, cn, null, null);
+        }
+    }
+
+    // Double the number of tickets available.
+    private void growTickets() {
+        int size = 2 * owners.length;
+        owners = Arrays.copyOf(owners, size);
+        spots = Arrays.copyOf(spots, size);
+        for (int list = ACTORS; list <= AGENTS; list++) {
+            firsts[list] = Arrays.copyOf(firsts[list], size);
+            lasts[list] = Arrays.copyOf(lasts[list], size);
+        }
+    }
+
+    // Double the number of nodes available.
+    private void growNodes() {
+        int old = nexts.length, size = 2 * old;
+        holders = Arrays.copyOf(holders, size);
+        nexts = Arrays.copyOf(nexts, size);
+        prevs = Arrays.copyOf(prevs, size);
+        sames = Arrays.copyOf(sames, size);
+        for (int n = old; n < size; n++) nexts[n] = n + 1;
+        nexts[size - 1] = -1;
+        free = old;
+    }
 
     // Testing
     private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
     public static void main(String[] args) {
         Queue<String> queue = new Queue<String>();
-        String a = "a", b = "b", c = "c";
-        queue.agent(a, false);
-        queue.agent(b, false);
+        String a = "a", b = "b", c = "c", d = "d";
+        int ta = queue.agent(a, -1, false);
+        int tb = queue.agent(b, -1, false);
         queue.command('^');
         claim(queue.command() == '^');
         claim(queue.next() == a);
         claim(queue.next() == b);
         claim(queue.next() == null);
         queue.command('v');
-        queue.join(c, true);
+        int tc = queue.join(c, -1, true);
         claim(queue.next() == c);
         claim(queue.next() == a);
         claim(queue.next() == b);
@@ -82,6 +282,49 @@ class Queue<E> {
         claim(queue.next() == a);
         claim(queue.next() == b);
         claim(queue.next() == null);
+        // Stopping removes the frontmost appearance, as with a Deque.
+        queue.command('<');
+        queue.join(c, tc, false);
+        queue.join(a, ta, true);
+        queue.stop(a, ta);
+        claim(queue.next() == a);
+        claim(queue.next() == b);
+        claim(queue.next() == c);
+        claim(queue.next() == null);
+        queue.command('<');
+        claim(queue.next() == b);
+        claim(queue.next() == null);
+        // Plenty of entities, so that the arrays grow.
+        for (int i = 0; i < 40; i++) queue.join("x" + i, -1, false);
+        queue.join(d, -1, true);
+        claim(queue.next() == d);
+        for (int i = 0; i < 40; i++) claim(queue.next().equals("x" + i));
+        queue.command('<');
+        int n = queue.firstNode(false);
+        claim(queue.holder(n) == b && queue.nextNode(n) < 0);
+        claim(queue.holder(queue.firstNode(true)) == b);
+        // Unlinking and relinking a node.
+        int p = queue.prevs[n], q = queue.nexts[n];
+        queue.unlink(ACTORS, tb, n, -1);
+        claim(queue.next() == null);
+        queue.link(ACTORS, tb, n, p, q, -1, -1);
+        claim(queue.next() == b && queue.next() == null);
+        // A shared entity has a chain of nodes for each place.
+        queue.command('.');
+        int p3 = queue.ticketAt(d, 3), p5 = queue.ticketAt(d, 5);
+        claim(p3 != p5 && queue.ticketAt(d, 3) == p3);
+        claim(queue.ticketAt(d, 40) != p3);
+        queue.join(d, p3, false);
+        queue.join(d, p5, true);
+        queue.join(d, p3, false);
+        queue.stop(d, p3);
+        claim(queue.next() == d && queue.place() == 5);
+        claim(queue.next() == b && queue.place() == -1);
+        claim(queue.next() == d && queue.place() == 3);
+        claim(queue.next() == null);
+        queue.end();
+        queue.command('.');
+        claim(queue.next() == null);
         System.out.println("Queue class OK");
     }
 }
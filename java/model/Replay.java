@@ -0,0 +1,324 @@
+package model;
+import java.io.*;
+import java.util.*;
+
+/* Replay class. Free and open source: see licence.txt.
+
+A replay object holds one line of a recording: the command key, the changes it
+caused on screen, each a position and the character code of the new entity
+there, and optionally the hash of the level's state when the command finished.
+A line can be reused, to avoid allocating a new one for each command.
+
+Recordings can be stored as text, one line per command as described in the
+Level class, or in a more compact binary format.  A binary recording starts with
+a magic number, which includes a version number, and a flags byte saying
+whether hashes are included.  Then each line is stored as the command byte, the
+number of changes as a varint, and the changes, each as the differences in x
+and y from the previous change as zigzag varints, followed by the code byte.
+Changes tend to be close together, so most take three bytes.  If hashes are
+included, each line ends with the eight bytes of the hash, so that checking a
+recording can detect differences in state which are not visible on screen.
+
+A reader streams lines from a recording in either format, detecting which from
+the magic number, and a writer streams lines to a binary recording.  Like a
+print writer, a writer doesn't throw exceptions, so that it can be used during
+play, and any error can be detected at the end.  Running this class converts a
+recording from one format to the other, e.g. from the makefile:
+
+    java -cp ../bin model.Replay ../bin/tests/27a.txt 27a.rpl
+
+The output is in text format if the file name ends with .txt, or binary
+otherwise.  Hashes can't be added by conversion, since that needs the game's
+entity classes, so converted recordings have none. */
+
+public class Replay {
+    private static final int MAGIC = 0x57525001, HASHES = 1;
+    private char command;
+    private int size;
+    private int[] xs = new int[16], ys = new int[16];
+    private char[] codes = new char[16];
+    private long hash;
+    private boolean hashed;
+
+    // Get the command, number of changes, and the position and code of the
+    // i'th change.
+    public char command() { return command; }
+    public int size() { return size; }
+    public int x(int i) { return xs[i]; }
+    public int y(int i) { return ys[i]; }
+    public char code(int i) { return codes[i]; }
+
+    // Get the hash, and find whether there is one.
+    public long hash() { return hash; }
+    public boolean hashed() { return hashed; }
+
+    // Start a new line for a command, with no changes and no hash.
+    void clear(char cmd) {
+        command = cmd;
+        size = 0;
+        hashed = false;
+    }
+
+    // Add a change.
+    void add(int x, int y, char code) {
+        if (size == xs.length) {
+            xs = Arrays.copyOf(xs, 2 * size);
+            ys = Arrays.copyOf(ys, 2 * size);
+            codes = Arrays.copyOf(codes, 2 * size);
+        }
+        xs[size] = x;
+        ys[size] = y;
+        codes[size] = code;
+        size++;
+    }
+
+    // Set the hash.
+    void hash(long h) {
+        hash = h;
+        hashed = true;
+    }
+
+    // Check whether the command and changes match another line's, ignoring
+    // the hashes.
+    public boolean matches(Replay r) {
+        if (command != r.command || size != r.size) return false;
+        for (int i = 0; i < size; i++) {
+            if (xs[i] != r.xs[i] || ys[i] != r.ys[i]) return false;
+            if (codes[i] != r.codes[i]) return false;
+        }
+        return true;
+    }
+
+    // Parse a line of a text recording.  Each change is written x,y,c where
+    // the code c may be any character, including a space or comma.
+    void parse(String line) {
+        clear(line.charAt(0));
+        int p = 1, n = line.length();
+        while (p < n) {
+            if (line.charAt(p) != ' ') throw new Error("Bad line: " + line);
+            int comma = line.indexOf(',', p + 1);
+            int next = line.indexOf(',', comma + 1);
+            if (comma < 0 || next < 0 || next + 1 >= n) {
+                throw new Error("Bad line: " + line);
+            }
+            int x = Integer.parseInt(line, p + 1, comma, 10);
+            int y = Integer.parseInt(line, comma + 1, next, 10);
+            add(x, y, line.charAt(next + 1));
+            p = next + 2;
+        }
+    }
+
+    // Give the line in text format.
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (command != '\0') sb.append(command);
+        for (int i = 0; i < size; i++) {
+            sb.append(' ').append(xs[i]).append(',').append(ys[i]);
+            sb.append(',').append(codes[i]);
+        }
+        return sb.toString();
+    }
+
+    // Read lines from a recording in either format.
+    public static class Reader {
+        private DataInputStream data;
+        private BufferedReader text;
+        private boolean hashes;
+        private int number, x, y;
+
+        // Create a reader, detecting the format from the first few bytes.
+        public Reader(InputStream is) throws IOException {
+            BufferedInputStream in = new BufferedInputStream(is);
+            in.mark(4);
+            byte[] b = in.readNBytes(4);
+            int magic = 0;
+            for (int i = 0; i < b.length; i++) magic = magic << 8 | b[i] & 0xFF;
+            if (b.length == 4 && magic == MAGIC) {
+                data = new DataInputStream(in);
+                hashes = (data.readByte() & HASHES) != 0;
+                return;
+            }
+            in.reset();
+            text = new BufferedReader(new InputStreamReader(in));
+        }
+
+        // Check whether the recording is binary, and whether it has hashes.
+        public boolean binary() { return data != null; }
+        public boolean hashes() { return hashes; }
+
+        // Get the line number, from 1, of the line most recently read.
+        public int number() { return number; }
+
+        // Read the next line into a replay object, skipping blank lines in a
+        // text recording.  Return false at the end of the recording.
+        public boolean read(Replay r) throws IOException {
+            if (text != null) {
+                String line;
+                do {
+                    line = text.readLine();
+                    if (line == null) return false;
+                    number++;
+                } while (line.length() == 0);
+                r.parse(line);
+                return true;
+            }
+            int cmd = data.read();
+            if (cmd < 0) return false;
+            number++;
+            r.clear((char) cmd);
+            int n = varint();
+            for (int i = 0; i < n; i++) {
+                x += zigzag(varint());
+                y += zigzag(varint());
+                r.add(x, y, (char) data.readUnsignedByte());
+            }
+            if (hashes) r.hash(data.readLong());
+            return true;
+        }
+
+        // Read an unsigned varint, seven bits per byte, low bits first.
+        private int varint() throws IOException {
+            int n = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = data.readUnsignedByte();
+                n |= (b & 0x7F) << shift;
+                if (b < 0x80) return n;
+            }
+            throw new IOException("Bad varint");
+        }
+
+        private static int zigzag(int n) { return (n >>> 1) ^ -(n & 1); }
+
+        public void close() throws IOException {
+            if (data != null) data.close();
+            else text.close();
+        }
+    }
+
+    // Write lines to a binary recording.  Like a print writer, this doesn't
+    // throw exceptions, but notes any error, which can be checked at the end.
+    public static class Writer {
+        private DataOutputStream out;
+        private boolean hashes, error;
+        private int x, y;
+
+        // Create a writer, and write the header, saying whether hashes are to
+        // be included.
+        public Writer(OutputStream os, boolean h) {
+            out = new DataOutputStream(new BufferedOutputStream(os));
+            hashes = h;
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(hashes ? HASHES : 0);
+            }
+            catch (IOException e) { error = true; }
+        }
+
+        // Write a line.  If hashes are included, the line must have one.
+        public void write(Replay r) {
+            if (hashes && ! r.hashed) throw new Error("No hash");
+            if (r.command > 0xFF) throw new Error("Bad command");
+            try {
+                out.writeByte(r.command);
+                varint(r.size);
+                for (int i = 0; i < r.size; i++) {
+                    if (r.codes[i] > 0xFF) throw new Error("Bad code");
+                    varint(zigzag(r.xs[i] - x));
+                    varint(zigzag(r.ys[i] - y));
+                    out.writeByte(r.codes[i]);
+                    x = r.xs[i];
+                    y = r.ys[i];
+                }
+                if (hashes) out.writeLong(r.hash);
+            }
+            catch (IOException e) { error = true; }
+        }
+
+        private void varint(int n) throws IOException {
+            while ((n & ~0x7F) != 0) {
+                out.writeByte((n & 0x7F) | 0x80);
+                n = n >>> 7;
+            }
+            out.writeByte(n);
+        }
+
+        private static int zigzag(int n) { return (n << 1) ^ (n >> 31); }
+
+        // Flush the output, and return true if there has been an error.
+        public boolean checkError() {
+            try { out.flush(); }
+            catch (IOException e) { error = true; }
+            return error;
+        }
+
+        public void close() {
+            try { out.close(); }
+            catch (IOException e) { error = true; }
+        }
+    }
+
+    // Convert a recording from one format to the other.
+    private static void convert(String in, String out) throws IOException {
+        Reader r = new Reader(new FileInputStream(in));
+        Replay line = new Replay();
+        if (out.endsWith(".txt")) {
+            PrintWriter w = new PrintWriter(new FileWriter(out));
+            while (r.read(line)) w.println(line);
+            w.close();
+            if (w.checkError()) throw new IOException("Can't write " + out);
+        }
+        else {
+            Writer w = new Writer(new FileOutputStream(out), false);
+            while (r.read(line)) w.write(line);
+            w.close();
+            if (w.checkError()) throw new IOException("Can't write " + out);
+        }
+        r.close();
+    }
+
+    // Testing
+    private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
+    private static void test() throws IOException {
+        String[] text = { "v 25,7,. 25,8,@", "< 24,9,  3,0,, 3,1,#", ".", "^" };
+        Replay line = new Replay();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer w = new Writer(bytes, true);
+        for (int i = 0; i < text.length; i++) {
+            line.parse(text[i]);
+            claim(line.toString().equals(text[i]));
+            line.hash(i - 1);
+            w.write(line);
+        }
+        claim(! w.checkError());
+        line.parse(text[1]);
+        claim(line.size() == 3 && line.code(0) == ' ' && line.code(1) == ',');
+        claim(line.x(2) == 3 && line.y(2) == 1 && ! line.hashed());
+        int size = bytes.size() - 5 - 8 * text.length;
+        claim(size < String.join("\n", text).length());
+        Reader r = new Reader(new ByteArrayInputStream(bytes.toByteArray()));
+        Replay other = new Replay();
+        claim(r.binary() && r.hashes());
+        for (int i = 0; i < text.length; i++) {
+            claim(r.read(other) && other.toString().equals(text[i]));
+            claim(other.hashed() && other.hash() == i - 1);
+            claim(r.number() == i + 1);
+        }
+        claim(! r.read(other));
+        byte[] lines = "v 1,2,3\n\n> 4,5,6\n".getBytes();
+        r = new Reader(new ByteArrayInputStream(lines));
+        claim(! r.binary() && r.read(line) && r.read(other));
+        claim(line.command() == 'v' && other.code(0) == '6');
+        claim(r.number() == 3 && ! line.matches(other) && ! r.read(line));
+    }
+
+    // Convert a recording given input and output files, or test this class if
+    // there are no arguments.
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2) {
+            convert(args[0], args[1]);
+            return;
+        }
+        test();
+        System.out.println("Replay class OK");
+    }
+}
@@ -0,0 +1,126 @@
+package model;
+import java.util.*;
+
+/* Snapshot class. Free and open source: see licence.txt.
+
+A snapshot holds the state of a level at some point during play, so that the
+level can later be restored to that point.  It is a compact buffer of ints,
+together with the types of the level's entities and the values of its string
+variables.  Entities are referred to by their index in the level's roster, so a
+snapshot can be restored into any level object which has loaded the same level.
+A snapshot can be reused, to avoid allocating a new one each time.
+
+Entity classes with private fields which change during play save them with the
+put methods, and restore them with the get methods of a reader, in the same
+order.  Reading doesn't change the snapshot, since the read position is kept
+in the reader, so a snapshot can be shared, e.g. by several threads in a search
+restoring their own level objects from it at the same time. */
+
+public class Snapshot {
+    String name;
+    int[] data = new int[1024];
+    int size;
+    char[] types = new char[256];
+    int count;
+    String[] strings = new String[16];
+
+    // Clear the snapshot, ready to be filled.
+    void clear(String n) {
+        name = n;
+        size = count = 0;
+    }
+
+    // Add an int, boolean or direction (which may be null).
+    public void put(int n) {
+        if (size == data.length) {
+            data = Arrays.copyOf(data, Math.max(1, 2 * size));
+        }
+        data[size++] = n;
+    }
+
+    public void put(boolean b) { put(b ? 1 : 0); }
+
+    public void put(Direction d) { put(d == null ? -1 : d.ordinal()); }
+
+    // Add the type of the next entity in the roster.
+    void type(char t) {
+        if (count == types.length) {
+            types = Arrays.copyOf(types, Math.max(1, 2 * count));
+        }
+        types[count++] = t;
+    }
+
+    // Set the i'th string variable.
+    void string(int i, String s) {
+        if (i >= strings.length) {
+            strings = Arrays.copyOf(strings, Math.max(i+1, 2*strings.length));
+        }
+        strings[i] = s;
+    }
+
+    // Release any spare space, e.g. when many snapshots are being kept.
+    public void trim() {
+        data = Arrays.copyOf(data, size);
+        types = Arrays.copyOf(types, count);
+    }
+
+    // A reader holds a position in a snapshot, and reads the ints back.
+    public static class Reader {
+        private static final Direction[] directions = Direction.values();
+        private Snapshot snapshot;
+        private int cursor;
+
+        // Start reading a snapshot from a given position.
+        void open(Snapshot s, int position) {
+            snapshot = s;
+            cursor = position;
+        }
+
+        // Get the next int, boolean or direction.
+        public int getInt() {
+            if (cursor >= snapshot.size) throw new Error("Snapshot overrun");
+            return snapshot.data[cursor++];
+        }
+
+        public boolean getBoolean() { return getInt() != 0; }
+
+        public Direction getDirection() {
+            int n = getInt();
+            return (n < 0) ? null : directions[n];
+        }
+    }
+
+    // Testing
+    private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
+    public static void main(String[] args) {
+        Snapshot s = new Snapshot();
+        s.clear("1");
+        for (int i = 0; i < 2000; i++) s.put(i);
+        s.put(true);
+        s.put(Direction.Left);
+        s.put((Direction) null);
+        Reader r = new Reader(), q = new Reader();
+        r.open(s, 0);
+        q.open(s, 0);
+        for (int i = 0; i < 2000; i++) claim(r.getInt() == i);
+        claim(q.getInt() == 0 && q.getInt() == 1);
+        claim(r.getBoolean());
+        claim(r.getDirection() == Direction.Left);
+        claim(r.getDirection() == null);
+        s.trim();
+        claim(s.data.length == s.size && s.types.length == s.count);
+        s.put(7);
+        r.open(s, 0);
+        claim(r.getInt() == 0);
+        Snapshot e = new Snapshot();
+        e.clear("2");
+        e.trim();
+        e.put(1);
+        e.type('a');
+        e.put(2);
+        e.type('b');
+        r.open(e, 1);
+        claim(r.getInt() == 2 && e.types[1] == 'b');
+        System.out.println("Snapshot class OK");
+    }
+}
@@ -1,53 +1,172 @@
 package model;
 import java.util.*;
+import java.util.concurrent.*;
 import java.lang.reflect.*;
+import java.util.function.*;
 
 /* State class. Free and open source: see licence.txt.
 
 This is the current global state of a game.  The state holds collections of
-entities, strings and counters, accessed using string ids.  The defaults are
-null entities, empty strings, and zero counters.
+entities, strings and counters.  The defaults are null entities, empty strings,
+and zero counters.
+
+A game registers the names of its variables once, to get int handles, and the
+handles index arrays directly, so that reading or updating a variable doesn't
+involve hashing or boxing.  The register of names is shared by all states, so
+handles can be held in static constants.  Variables can also be accessed using
+string ids, which are looked up in the register.  If the state is given a log,
+each change is recorded with the old and new values.  A Zobrist hash of the
+variables is kept up to date as they change, with entities hashed by kind.
+Handles depend on the order in which classes happen to register their names, so
+the hash keys a variable by the hash code of its name instead, which is the
+same in every run, as needed for hashes saved in recordings.
 
 This class is generic to avoid cyclic dependencies, and to allow for a
 game-specific Entity base class. */
 
 class State<E> {
-    private Map<String,E> entities = new HashMap<>();
-    private Map<String,String> strings = new HashMap<>();
-    private Map<String,Integer> counters = new HashMap<>();
+    private static Map<String,Integer> ids = new ConcurrentHashMap<>();
+    private static volatile int[] codes = new int[8];
+    private Object[] entities = new Object[8];
+    private String[] strings = new String[8];
+    private int[] counters = new int[8];
+    private Log log;
+    private ToIntFunction<? super E> kind = e -> 0;
+    private long hash;
+
+    // Register a variable name, and return its handle.
+    static synchronized int variable(String v) {
+        Integer i = ids.get(v);
+        if (i == null) {
+            i = ids.size();
+            int[] c = codes;
+            if (i >= c.length) c = Arrays.copyOf(c, 2 * c.length);
+            c[i] = v.hashCode();
+            codes = c;
+            ids.put(v, i);
+        }
+        return i;
+    }
+
+    // Find the hash code of a variable's name, given its handle.
+    private static int code(int v) { return codes[v]; }
 
     // Clear the state ready for a new level.
     void reset() {
-        entities.clear();
-        strings.clear();
-        counters.clear();
+        Arrays.fill(entities, null);
+        Arrays.fill(strings, null);
+        Arrays.fill(counters, 0);
+        hash = 0;
+    }
+
+    // Record changes in a log, or stop recording if null.
+    void log(Log g) { log = g; }
+
+    // Set the function which gives the kind of an entity, for hashing.
+    void kinds(ToIntFunction<? super E> f) { kind = f; }
+
+    // Find the hash of the variables.
+    long hash() { return hash; }
+
+    // Set an entity, string or counter, given its handle.
+    void set(int v, E e) {
+        ensure(v);
+        if (log != null) log.add(Log.ENTITY, v,0,0,0,0,0,0, entities[v], e);
+        E old = entity(v);
+        int c = code(v);
+        if (old != null) hash ^= Hash.key(Hash.ENTITY, c, kind.applyAsInt(old));
+        if (e != null) hash ^= Hash.key(Hash.ENTITY, c, kind.applyAsInt(e));
+        entities[v] = e;
+    }
+
+    void set(int v, int n) {
+        ensure(v);
+        if (log != null) log.add(Log.COUNT, v,counters[v],n,0,0,0,0, null,null);
+        hash ^= key(v);
+        counters[v] = n;
+        hash ^= key(v);
+    }
+
+    void set(int v, String s) {
+        ensure(v);
+        if (log != null) log.add(Log.STRING, v,0,0,0,0,0,0, strings[v], s);
+        hash ^= key(v, strings[v]) ^ key(v, s);
+        strings[v] = s;
+    }
+
+    // Get an entity, given its handle.
+    @SuppressWarnings("unchecked")
+    E entity(int v) {
+        return (v < entities.length) ? (E) entities[v] : null;
+    }
+
+    // Get a string, given its handle.
+    String string(int v) {
+        String s = (v < strings.length) ? strings[v] : null;
+        return (s == null) ? "" : s;
+    }
+
+    // Get a counter, given its handle.
+    int count(int v) {
+        return (v < counters.length) ? counters[v] : 0;
+    }
+
+    // Add to a counter, given its handle.
+    void add(int v, int n) {
+        ensure(v);
+        set(v, counters[v] + n);
     }
 
     // Set a named entity, string or counter.
-    void set(String v, E e) { entities.put(v, e); }
-    void set(String v, int n) { counters.put(v, n); }
-    void set(String v, String s) { strings.put(v, s); }
+    void set(String v, E e) { set(variable(v), e); }
+    void set(String v, int n) { set(variable(v), n); }
+    void set(String v, String s) { set(variable(v), s); }
 
     // Get a named entity.
     E entity(String v) {
-        return entities.get(v);
+        Integer i = ids.get(v);
+        return (i == null) ? null : entity(i);
     }
 
     // Get a named string.
     String string(String v) {
-        String s = strings.get(v);
-        return (s == null) ? "" : s;
+        Integer i = ids.get(v);
+        return (i == null) ? "" : string(i);
     }
 
     // Get a named counter.
     int count(String v) {
-        Integer i = counters.get(v);
-        return (i == null) ? 0 : i;
+        Integer i = ids.get(v);
+        return (i == null) ? 0 : count(i);
     }
 
     // Add to a named counter.
     void add(String v, int n) {
-        set(v, count(v) + n);
+        add(variable(v), n);
+    }
+
+    // Find the part of the hash which comes from a counter.
+    long key(int v) {
+        int n = count(v);
+        return (n == 0) ? 0 : Hash.key(Hash.COUNT, code(v), n);
+    }
+
+    // Find the number of variables which have been registered, for snapshots.
+    static int size() { return ids.size(); }
+
+    // Find the key for a string variable, with none for an empty string.
+    private static long key(int v, String s) {
+        if (s == null || s.isEmpty()) return 0;
+        return Hash.key(Hash.STRING, code(v), s.hashCode());
+    }
+
+    // Make sure the arrays are big enough to hold a variable.
+    private void ensure(int v) {
+        if (v < counters.length) return;
+        int n = Math.max(v + 1, 2 * counters.length);
+        entities = Arrays.copyOf(entities, n);
+        strings = Arrays.copyOf(strings, n);
+        counters = Arrays.copyOf(counters, n);
     }
 
     // Testing
@@ -63,6 +182,30 @@ class State<E> {
         claim(state.count("SCORE") == 0);
         state.set("SCORE", 2);
         claim(state.count("SCORE") == 2);
+        state.add("SCORE", 3);
+        claim(state.count("SCORE") == 5);
+        int score = variable("SCORE");
+        claim(score == variable("SCORE") && score != variable("PLAYER"));
+        claim(state.count(score) == 5);
+        state.add(score, 1);
+        claim(state.count("SCORE") == 6);
+        int big = 0;
+        for (int i = 0; i < 20; i++) big = variable("V" + i);
+        claim(state.count(big) == 0);
+        state.set(big, 7);
+        claim(state.count(big) == 7);
+        long h = state.hash();
+        state.set(big, 8);
+        claim(state.hash() != h);
+        state.set(big, 7);
+        claim(state.hash() == h);
+        claim((h ^ state.key(big)) != h && state.key(variable("ZERO")) == 0);
+        claim(state.key(big) == Hash.key(Hash.COUNT, "V19".hashCode(), 7));
+        state.reset();
+        claim(state.hash() == 0);
+        claim(state.count("SCORE") == 0);
+        claim(state.entity("PLAYER") == null);
+        claim(state.string("MESSAGE").equals(""));
         System.out.println("State class OK");
     }
 }
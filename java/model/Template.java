@@ -0,0 +1,72 @@
+package model;
+import java.util.*;
+
+/* Template class. Free and open source: see licence.txt.
+
+A template holds the parsed data for a level: its size, move limit, title and
+cell codes.  Templates are kept in a cache, shared by all level objects, so that
+restarting a level, or replaying one repeatedly, doesn't involve reading and
+parsing the level file again.  The cache has a bounded size, and when it is
+full, the least recently used template is evicted.  A template is never changed
+once it is in the cache, and a level copies its cells before using them. */
+
+class Template {
+    private static final int SIZE = 16;
+    private static Map<String,Template> cache = new LinkedHashMap<>(
+        32, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String,Template> e) {
+            return size() > SIZE;
+        }
+    };
+    final int width, height, limit;
+    final String title;
+    private final char[][] cells;
+
+    // Create a template, taking ownership of the cells array.
+    Template(int w, int h, int l, String t, char[][] c) {
+        width = w;
+        height = h;
+        limit = l;
+        title = t;
+        cells = c;
+    }
+
+    // Find the template for a level file in the cache, or return null.
+    static synchronized Template get(String path) { return cache.get(path); }
+
+    // Add the template for a level file to the cache.
+    static synchronized void put(String path, Template t) {
+        cache.put(path, t);
+    }
+
+    // Copy the cells into an array, reusing it if it is the right size, and
+    // return the array.
+    char[][] cells(char[][] array) {
+        boolean fits = array != null && array.length == width;
+        fits = fits && array[0].length == height;
+        if (! fits) array = new char[width][height];
+        for (int x = 0; x < width; x++) {
+            System.arraycopy(cells[x], 0, array[x], 0, height);
+        }
+        return array;
+    }
+
+    // Testing
+    private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
+    public static void main(String[] args) {
+        char[][] cells = {{'#', '#'}, {'@', '.'}};
+        Template t = new Template(2, 2, 0, "Title", cells);
+        put("/test/0", t);
+        claim(get("/test/0") == t && get("/test/x") == null);
+        char[][] copy = t.cells(null);
+        claim(copy != cells && copy[1][0] == '@');
+        claim(t.cells(copy) == copy && t.cells(new char[2][3]) != copy);
+        for (int i = 1; i <= SIZE; i++) {
+            put("/test/" + i, t);
+            get("/test/0");
+        }
+        claim(get("/test/0") == t && get("/test/1") == null);
+        claim(get("/test/" + SIZE) == t);
+        System.out.println("Template class OK");
+    }
+}
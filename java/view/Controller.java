@@ -15,24 +15,33 @@ import javafx.event.*;
 
 Interpret the program's command line arguments, handle recording and playback of
 levels, deal with animation ticks, and provide a button bar for the user
-interface. The command line arguments accepted are:
+interface. Moves can be undone and redone, except when recording. The command
+line arguments accepted are:
 
-    java ... [level] [-r out] [-p in] [-s steps]
+    java ... [level] [-r out] [-p in] [-s steps] [-f rate]
 
 The level argument lets you start the game on a given level.
 The -r argument allows the play to be recorded in a given output file.
 The -p argument allows the game to be played back from a given input file.
 A recording or playback name is a level name with a one-letter suffix.
+A recording is written as text if its name ends with .txt, or else in the
+binary format described in the Replay class, with state hashes.  A playback
+file can be in either format, and the format is detected automatically.
 If two or more of these three options are given, the level name must agree.
-The -s argument specifies how many steps to replay from the file.
-After replaying a given number of steps, you can continue playing manually.
+The -s argument specifies how many steps to replay from the file.  They are
+carried out straight away, without animation, using the Playback class, and
+then you can continue playing manually.  Without -s, the whole file is replayed
+with animation.
+The -f argument switches on fast-forward mode, in which commands are carried out
+without animation, redrawing at the given frame rate, or only at the end if the
+rate is 0.  Fast-forward mode can be switched on or off with CTRL+F.
 You can replay and record at the same time. */
 
 public class Controller<E extends Cell<E>> extends Scene {
     private Stage stage;
     private Game<E> game;
-    private Level<E> level;
-    private Display display;
+    private Simulation<E> simulation;
+    private Display<E> display;
     private Table table;
     private Help help;
     private Ticker<E> ticker;
@@ -41,8 +50,10 @@ public class Controller<E extends Cell<E>> extends Scene {
 
     private int number;
     private String prefix;
-    private Scanner in;
+    private Replay.Reader in;
+    private Playback<E> playback;
     private PrintWriter out;
+    private Replay.Writer writer;
     private int steps;
 
     // Create a controller from the name of the game, the main stage, a level
@@ -52,15 +63,21 @@ public class Controller<E extends Cell<E>> extends Scene {
         stage = s;
         game = g;
         stage.setTitle(game.name());
-        level = new Level<E>(game::hatch);
+        simulation = new Simulation<E>(new Level<E>(game::hatch), game);
         names = new String[game.levelCount()];
         for (int i=0; i<names.length; i++) {
             names[i] = name(game.levelPath(i), false);
         }
-        display = new Display<E>(level, game, 42*24, 18*24);
+        List<String> paths = new ArrayList<>();
+        for (char c = ' '; c <= '~'; c++) {
+            String path = game.imagePath(c);
+            if (path != null) paths.add(path);
+        }
+        Sprites sprites = new Sprites(paths);
+        display = new Display<E>(game, sprites, 42*24, 18*24);
         table = new Table(game.name(), names);
-        help = new Help(stage, 700, 500, game.name());
-        ticker = new Ticker<E>(display, table, level, game);
+        help = new Help(stage, 700, 500, game.name(), sprites);
+        ticker = new Ticker<E>(display, table, simulation);
         BorderPane pane = (BorderPane) getRoot();
         pane.setTop(createButtons());
         pane.setCenter(display);
@@ -78,28 +95,43 @@ public class Controller<E extends Cell<E>> extends Scene {
         String message = trySetup(args);
         if (message == null) return;
         System.err.println("Error: " + message + ".  Use:");
-        System.err.println("  java ... [level] [-r out] [-p in] [-s steps]");
+        System.err.println(
+            "  java ... [level] [-r out] [-p in] [-s steps] [-f rate]");
         System.exit(1);
     }
 
-    // Replay by routing commands to the ticker.  Call after showing stage.
+    // Replay, after showing the stage.  Given a number of steps, seek to that
+    // point straight away, on the simulation thread.  Otherwise, route all the
+    // commands to the ticker.
     private void replay() {
-        if (replaying()) ticker.pause();
-        while (replaying()) {
-            char cmd = command();
-            ticker.command(cmd);
+        if (playback == null) return;
+        if (steps >= 0) {
+            simulation.submit(level -> { playback.seek(steps); return false; });
+            return;
+        }
+        ticker.pause();
+        for (int i = 0; i < playback.size(); i++) {
+            ticker.command(playback.command(i));
         }
     }
 
     // Close the program and save the high scores.
     public void close() {
-        if (out != null) out.close();
+        ticker.cancel();
+        simulation.call(level -> {
+            if (out != null) out.close();
+            if (writer != null) writer.close();
+            return null;
+        });
+        simulation.close();
         table.close();
     }
 
     private HBox createButtons() {
         Button quitButton = new Button("Quit");
         Button restartButton = new Button("Restart");
+        Button undoButton = new Button("Undo");
+        Button redoButton = new Button("Redo");
         Button prevButton = new Button("Prev");
         Button nextButton = new Button("Next");
         Button fasterButton = new Button("Faster");
@@ -108,6 +140,8 @@ public class Controller<E extends Cell<E>> extends Scene {
         Button helpButton = new Button("Help");
         quitButton.setOnAction(this::quit);
         restartButton.setOnAction(this::restart);
+        undoButton.setOnAction(ticker::undo);
+        redoButton.setOnAction(ticker::redo);
         prevButton.setOnAction(this::prev);
         nextButton.setOnAction(this::next);
         fasterButton.setOnAction(ticker::faster);
@@ -115,33 +149,42 @@ public class Controller<E extends Cell<E>> extends Scene {
         scoresButton.setOnAction(table::show);
         helpButton.setOnAction(help::show);
         return new HBox(
-            quitButton, restartButton, prevButton, nextButton, fasterButton,
-            slowerButton, scoresButton, helpButton
+            quitButton, restartButton, undoButton, redoButton, prevButton,
+            nextButton, fasterButton, slowerButton, scoresButton, helpButton
         );
     }
 
     // Set up controller, returning null or an error message for testing.
     private String trySetup(List<String> args) {
         steps = -1;
-        boolean rFlag = false, pFlag = false, sFlag = false;
+        boolean rFlag = false, pFlag = false, sFlag = false, fFlag = false;
         String rName = null, pName = null, lName = null;
         try {
             for (String arg : args) {
                 if (arg.equals("-r")) rFlag = true;
                 else if (arg.equals("-p")) pFlag = true;
                 else if (arg.equals("-s")) sFlag = true;
+                else if (arg.equals("-f")) fFlag = true;
                 else if (arg.startsWith("-")) fail("unrecognised option");
                 else if (rFlag) { rFlag = false; rName = setupRecording(arg); }
                 else if (pFlag) { pFlag = false; pName = setupPlayback(arg); }
                 else if (sFlag) { sFlag = false; setupSteps(arg); }
+                else if (fFlag) { fFlag = false; setupRate(arg); }
                 else lName = setupLevel(arg);
             }
-            if (rFlag || pFlag || sFlag) fail("filename required.");
+            if (rFlag || pFlag || sFlag || fFlag) fail("argument required.");
             String name = merge(rName, pName, lName);
             if (name == null) name = table.current();
             if (name == null) name = names[0];
             index = index(name);
+            boolean undoable = out == null && writer == null;
+            simulation.call(level -> {
+                level.undoable(undoable);
+                return null;
+            });
             restart(null);
+            if (in != null) playback = simulation.call(this::playback);
+            in = null;
         } catch (Exception e) { return e.getMessage(); }
         return null;
     }
@@ -181,8 +224,12 @@ public class Controller<E extends Cell<E>> extends Scene {
                 break;
             case SPACE: ticker.command('.'); break;
             case R: if (event.isControlDown()) restart(null); break;
+            case Z: if (event.isControlDown()) ticker.undo(null); break;
+            case Y: if (event.isControlDown()) ticker.redo(null); break;
             case P: if (event.isControlDown()) prev(null); break;
             case N: if (event.isControlDown()) next(null); break;
+            case F: if (event.isControlDown()) ticker.fast(! ticker.fast());
+                break;
             case PLUS: if (event.isControlDown()) ticker.faster(null); break;
             case MINUS: if (event.isControlDown()) ticker.slower(null); break;
         }
@@ -191,11 +238,19 @@ public class Controller<E extends Cell<E>> extends Scene {
     // Respond to the quit button.
     private void quit(ActionEvent e) { Platform.exit(); }
 
-    // Start or restart a level.
+    // Read in the playback file, on the simulation thread.
+    private Playback<E> playback(Level<E> level) {
+        try { return new Playback<E>(level, in); }
+        catch (IOException e) {
+            throw new UncheckedIOException(e.getMessage(), e);
+        }
+    }
+
+    // Start or restart a level.  It is loaded on the simulation thread, and
+    // the display picks it up from its first frame.
     private void restart(ActionEvent e) {
-        level.load(game.levelPath(index));
+        ticker.load(game.levelPath(index));
         table.current(names[index]);
-        display.setup();
     }
 
     // Move to the next level.
@@ -210,38 +265,22 @@ public class Controller<E extends Cell<E>> extends Scene {
         restart(null);
     }
 
-    // Find out if there is anything more to replay
-    private boolean replaying() {
-        if (in == null) return false;
-        if (! in.hasNextLine() || steps == 0) {
-            in.close();
-            in = null;
-            return false;
+    private String setupRecording(String arg) throws Exception {
+        if (arg.endsWith(".txt")) {
+            out = new PrintWriter(new File(arg));
+            simulation.call(level -> { level.record(out); return null; });
         }
-        return true;
-    }
-
-    // Get the next command from the replay file.  Return '\0' if there isn't
-    // one, or the file ends, or the given number of steps is reached.
-    private char command() {
-        if (in == null) throw new Error("No replay file");
-        if (! in.hasNextLine() || steps <= 0) {
-            throw new Error("No more replay steps");
+        else {
+            writer = new Replay.Writer(new FileOutputStream(arg), true);
+            simulation.call(level -> { level.record(writer); return null; });
         }
-        steps--;
-        return in.nextLine().charAt(0);
-    }
-
-    private String setupRecording(String arg) throws Exception {
-        out = new PrintWriter(new File(arg));
-        level.record(out);
         return name(arg, true);
     }
 
     private String setupPlayback(String arg) throws Exception {
         File file = new File(arg);
         if (! file.canRead()) fail("can't open file " + arg);
-        in = new Scanner(file);
+        in = new Replay.Reader(new FileInputStream(file));
         return name(arg, true);
     }
 
@@ -250,6 +289,12 @@ public class Controller<E extends Cell<E>> extends Scene {
         catch (Exception e) { fail("# steps not integer"); }
     }
 
+    private void setupRate(String s) throws Exception {
+        try { ticker.rate(Integer.parseInt(s)); }
+        catch (Exception e) { fail("frame rate not integer"); }
+        ticker.fast(true);
+    }
+
     private String setupLevel(String arg) throws Exception {
         return name(arg, false);
     }
@@ -267,7 +312,8 @@ public class Controller<E extends Cell<E>> extends Scene {
     private String name(String path, boolean test) {
         int slash = path.lastIndexOf('/');
         if (slash >= 0) path = path.substring(slash + 1);
-        if (path.endsWith(".txt")) path = path.substring(0, path.length() - 4);
+        int dot = path.lastIndexOf('.');
+        if (dot > 0) path = path.substring(0, dot);
         if (test) path = path.substring(0, path.length() - 1);
         return path;
     }
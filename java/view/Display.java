@@ -10,6 +10,7 @@ import javafx.scene.image.*;
 import javafx.scene.text.*;
 import javafx.event.*;
 import javafx.geometry.*;
+import javafx.stage.*;
 
 /* Display class. Free and open source: see licence.txt.
 
@@ -17,10 +18,23 @@ Display the grid as a canvas, with a status bar underneath. If the canvas size
 is smaller than the grid size (e.g. on a mobile device) the viewport is based on
 the player's position. It is assumed that the grid has a wall around the edge,
 and the viewport is aligned with the edge when the player is next to the wall.
-The viewport is positioned proportionally between those limits. */
+The viewport is positioned proportionally between those limits.
+
+The display draws frames published by the simulation thread, and never looks at
+the level itself.  To keep the cost of a frame down, e.g. on slow machines with
+software rendering, only the cells whose types differ from the ones last drawn
+are repainted, so frames which the simulation has produced but which were never
+shown cause no problems.  The whole grid is repainted when a new level is set
+up, or restored, or when the viewport moves.
+
+Only the cells inside the viewport are drawn.  When a level is set up, its
+static terrain, i.e. the entities which are shareable such as walls and earth,
+is drawn once into a cached image of the whole level.  A whole repaint copies
+the visible part of that image in one go, then draws just the cells whose
+front entity differs from the cached terrain, so its cost depends on the
+dynamic content in view rather than on the size of the level. */
 
 public class Display<E extends Cell<E>> extends BorderPane {
-    private Level<E> level;
     private Game<E> game;
     private Canvas canvas;
     private Text message;
@@ -28,11 +42,19 @@ public class Display<E extends Cell<E>> extends BorderPane {
     private int maxWidth, maxHeight;
     private int cellWidth, cellHeight;
     private int fullWidth, fullHeight;
-    private Map<Character,Image> images;
+    private int levelWidth, levelHeight;
+    private Sprites atlas;
+    private int[] index = new int[128];
+    private boolean whole;
+    private int dx, dy;
+    private int x0, y0, x1, y1;
+    private WritableImage terrain;
+    private char[] terrainTypes;
+    private char[] drawn;
 
-    // Create a blank display given the level, game object, and max canvas size.
-    public Display(Level<E> l, Game<E> g, int w, int h) {
-        level = l;
+    // Create a blank display given the game object, sprite atlas, and max
+    // canvas size.
+    public Display(Game<E> g, Sprites a, int w, int h) {
         game = g;
         maxWidth = w;
         maxHeight = h;
@@ -40,54 +62,100 @@ public class Display<E extends Cell<E>> extends BorderPane {
         message = new Text("");
         TextFlow statusBar = new TextFlow(message);
         statusBar.setPadding(new Insets(3,10,3,10));
-        images = new HashMap<>();
+        atlas = a;
+        cellWidth = atlas.width();
+        cellHeight = atlas.height();
         for (char c = ' '; c <= '~'; c++) {
             String path = game.imagePath(c);
             if (path == null) continue;
-            Image img = new Image(path);
-            if (img == null) throw new Error("Can't load " + path);
-            images.put(c, img);
-            int cw = (int) img.getWidth(), ch = (int) img.getHeight();
-            if (cellWidth == 0) cellWidth = cw;
-            else if (cw != cellWidth) throw new Error("Bad images");
-            if (cellHeight == 0) cellHeight = ch;
-            else if (ch != cellHeight) throw new Error("Bad images");
+            index[c] = atlas.find(path);
+            if (index[c] < 0) throw new Error("Can't load " + path);
         }
         setCenter(canvas);
         setBottom(statusBar);
     }
 
-    // Call this each time a new level has been loaded.
-    public void setup() {
-        fullWidth = level.width() * cellWidth;
-        fullHeight = level.height() * cellHeight;
+    // Set up for a new level, or a level which has been restored, given its
+    // first frame.  Frames arrive after the window is shown, so it is resized
+    // if the canvas changes size.
+    private void setup(Frame f) {
+        levelWidth = f.width;
+        levelHeight = f.height;
+        fullWidth = levelWidth * cellWidth;
+        fullHeight = levelHeight * cellHeight;
         width = fullWidth;
         height = fullHeight;
         if (width > maxWidth) width = maxWidth;
         if (height > maxHeight) height = maxHeight;
+        boolean resize = canvas.getWidth() != width;
+        resize = resize || canvas.getHeight() != height;
         canvas.setWidth(width);
         canvas.setHeight(height);
-        redraw();
+        Window window = getScene() == null ? null : getScene().getWindow();
+        if (resize && window != null) window.sizeToScene();
+        if (drawn == null || drawn.length != f.types.length) {
+            drawn = new char[f.types.length];
+        }
+        cacheTerrain(f);
+        whole = true;
+    }
+
+    // Draw the terrain into the terrain image, reusing it if it is the right
+    // size.  Other cells are left as they are, since they are always drawn
+    // over.
+    private void cacheTerrain(Frame f) {
+        boolean fits = terrain != null && terrain.getWidth() == fullWidth;
+        fits = fits && terrain.getHeight() == fullHeight;
+        if (! fits) terrain = new WritableImage(fullWidth, fullHeight);
+        terrainTypes = f.terrain;
+        PixelWriter pw = terrain.getPixelWriter();
+        for (int x = 0; x < levelWidth; x++) {
+            for (int y = 0; y < levelHeight; y++) {
+                char t = f.terrain(x, y);
+                if (t == '\0') continue;
+                atlas.copy(index[t], pw, x*cellWidth, y*cellHeight);
+            }
+        }
     }
 
     // Update the status bar, work out where the viewport should be relative to
-    // the full grid, based on the player's position, then draw the grid,
-    // allowing normal clipping to create the viewport.
-    void redraw() {
-        message.setText(game.status(level));
+    // the full grid, based on the player's position, then draw the grid, or
+    // the changed cells, allowing normal clipping to create the viewport.  The
+    // frame can be given back to the simulation afterwards.
+    void show(Frame f) {
+        if (f.terrain != terrainTypes) setup(f);
+        message.setText(f.status);
         GraphicsContext g = canvas.getGraphicsContext2D();
-        Cell<E> player = game.player(level);
-        int px = player.x();
-        int py = player.y();
-        int dx = - (fullWidth - width) * (px - 1) / (level.width() - 3);
-        int dy = - (fullHeight - height) * (py - 1) / (level.height() - 3);
-        for (int x = 0; x < level.width(); x++) {
-            for (int y = 0; y < level.height(); y++) {
-                Cell e = level.front(x, y);
-                Image img = images.get(e.type());
-                g.drawImage(img, x*cellWidth + dx, y*cellHeight + dy);
+        int ox = dx, oy = dy;
+        dx = - (fullWidth - width) * (f.px - 1) / (levelWidth - 3);
+        dy = - (fullHeight - height) * (f.py - 1) / (levelHeight - 3);
+        if (dx != ox || dy != oy) whole = true;
+        x0 = -dx / cellWidth;
+        y0 = -dy / cellHeight;
+        x1 = (width - dx + cellWidth - 1) / cellWidth;
+        y1 = (height - dy + cellHeight - 1) / cellHeight;
+        x1 = Math.min(x1, levelWidth);
+        y1 = Math.min(y1, levelHeight);
+        if (whole) {
+            g.drawImage(terrain, -dx, -dy, width, height, 0, 0, width, height);
+        }
+        for (int x = x0; x < x1; x++) {
+            for (int y = y0; y < y1; y++) {
+                int i = x * levelHeight + y;
+                char t = f.types[i];
+                if (whole && t == terrainTypes[i]) drawn[i] = t;
+                else if (whole || t != drawn[i]) {
+                    draw(g, x, y, t);
+                    drawn[i] = t;
+                }
             }
         }
+        whole = false;
+    }
+
+    // Draw the image for an entity type in a cell.
+    private void draw(GraphicsContext g, int x, int y, char t) {
+        atlas.draw(g, index[t], x*cellWidth + dx, y*cellHeight + dy);
     }
 
     // No testing
@@ -0,0 +1,40 @@
+package view;
+
+/* Frame class. Free and open source: see licence.txt.
+
+A frame is a picture of a level at one moment, made by the simulation thread
+for the user interface to display.  It holds the type of the front entity in
+each cell, in (x,y) order, with the status message, player position, score and
+success, and the types of the level's static terrain.  A frame is filled in
+before it is published, and not changed after that until the user interface
+hands it back to be reused, so the two threads never touch it at once.
+
+The task number says which task submitted to the simulation produced the frame.
+The more flag says that the command which produced the frame has more steps to
+come, and the busy flag says that the simulation is part way through a batch of
+commands, e.g. in fast-forward mode, and will publish another frame itself. */
+
+class Frame {
+    int width, height;
+    char[] types;
+    char[] terrain;
+    String name, status;
+    int px, py, score, task;
+    boolean success, more, busy;
+
+    // Make a frame for a level of a given size.
+    Frame(int w, int h) {
+        width = w;
+        height = h;
+        types = new char[w * h];
+    }
+
+    // Get the type of the front entity in a cell, or of the terrain there.
+    char type(int x, int y) { return types[x * height + y]; }
+    char terrain(int x, int y) { return terrain[x * height + y]; }
+
+    // No testing
+    public static void main(String[] args) {
+        System.out.println("Frame class OK");
+    }
+}
@@ -25,18 +25,27 @@ custom micro markdown language. The language accepts lines of these forms:
     ordinary text
 
 A blank line forms a paragraph break. A line consisting of "-" on its own can be
-used to generate a gap between paragraphs. */
+used to generate a gap between paragraphs.
+
+If the help window is given the game's sprite atlas, images which are in it are
+shown from there, rather than being loaded again. */
 
 public class Help extends Stage {
     private int width, height;
     private Stack<String> pageNames;
     private Map<String,Scene> scenes;
+    private Sprites sprites;
 
     public Help(Stage parent, int w, int h, String index) {
+        this(parent, w, h, index, null);
+    }
+
+    public Help(Stage parent, int w, int h, String index, Sprites s) {
         super(StageStyle.UTILITY);
         initOwner(parent);
         width = w;
         height = h;
+        sprites = s;
         setTitle("Help");
         createPages(index);
         setScene(scenes.get(index));
@@ -135,13 +144,16 @@ public class Help extends Stage {
     // Add an image to the page, with a gap on either side.
     private void addImage(List<Node> nodes, String line) {
         line = line.substring(2);
-        Image img = null;
-        try { img = new Image(line); }
-        catch (Exception err) {
-            System.out.println("img " + line);
-            System.exit(1);
+        ImageView view = (sprites == null) ? null : sprites.view(line);
+        if (view == null) {
+            Image img = null;
+            try { img = new Image(line); }
+            catch (Exception err) {
+                System.out.println("img " + line);
+                System.exit(1);
+            }
+            view = new ImageView(img);
         }
-        ImageView view = new ImageView(img);
         view.setTranslateY(3);
         nodes.add(new Text("    "));
         nodes.add(view);
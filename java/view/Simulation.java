@@ -0,0 +1,149 @@
+package view;
+import model.*;
+import model.Cell;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import javafx.application.*;
+
+/* Simulation class. Free and open source: see licence.txt.
+
+The simulation runs a level on a dedicated worker thread, so that a long step,
+e.g. a cascade of teleports or boulders, doesn't hold up input handling and
+repainting on the JavaFX application thread.  Only the worker touches the
+level.  The user interface submits tasks, such as loading a level, carrying out
+a command, or taking one step, and after each task the worker publishes a frame
+describing the level.
+
+Frames are handed over without locks.  The latest frame is kept in an atomic
+reference, and the application thread is asked to take it.  If the worker
+publishes again before then, the frame which was never taken is reused.  Once
+the user interface has drawn a frame, it gives the frame back as a spare, so
+that the worker normally alternates between two frames, and doesn't allocate
+new ones.  Tasks are numbered as they are submitted, and each frame says which
+task produced it, so that the user interface can tell which frames belong to
+the command it is animating. */
+
+class Simulation<E extends Cell<E>> {
+    private Level<E> level;
+    private Game<E> game;
+    private ExecutorService worker;
+    private AtomicReference<Frame> latest = new AtomicReference<>();
+    private AtomicReference<Frame> spare = new AtomicReference<>();
+    private Consumer<Frame> listener = f -> { };
+    private char[] terrain;
+    private int loads = -1;
+    private int tasks;
+    private volatile int current;
+
+    // Create a simulation of a level, with a daemon worker thread.
+    Simulation(Level<E> l, Game<E> g) {
+        level = l;
+        game = g;
+        worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "Simulation");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Set the method to be called on the application thread with each frame.
+    void listen(Consumer<Frame> c) { listener = c; }
+
+    // Run a task on the worker, and publish a frame.  The task returns true if
+    // the current command has more steps to come.  Return the task's number.
+    int submit(Predicate<Level<E>> task) {
+        int n = ++tasks;
+        worker.execute(() -> {
+            current = n;
+            boolean more = false;
+            try { more = task.test(level); }
+            catch (RuntimeException | Error e) { e.printStackTrace(); }
+            publish(more, false);
+        });
+        return n;
+    }
+
+    // Run a task on the worker, publish a frame, and wait for the result, e.g.
+    // while setting up.  Errors are passed on to the caller.
+    <T> T call(Function<Level<E>,T> task) {
+        int n = ++tasks;
+        Future<T> f = worker.submit(() -> {
+            current = n;
+            try { return task.apply(level); }
+            finally { publish(false, false); }
+        });
+        try { return f.get(); }
+        catch (InterruptedException e) { throw new Error(e); }
+        catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            throw new Error(t);
+        }
+    }
+
+    // Publish a frame part way through a task, from the worker thread.
+    void progress() { publish(false, true); }
+
+    // Take the latest frame on the application thread, or return null if it
+    // has already been taken.
+    Frame take() { return latest.getAndSet(null); }
+
+    // Give back a frame which has been drawn, to be reused.
+    void release(Frame f) { spare.set(f); }
+
+    // Stop the worker once its tasks are done.
+    void close() { worker.shutdown(); }
+
+    // Fill in a frame from the level, and hand it over, unless no level has
+    // been loaded yet.
+    private void publish(boolean more, boolean busy) {
+        if (level.name() == null) return;
+        int w = level.width(), h = level.height();
+        if (level.loads() != loads) {
+            loads = level.loads();
+            terrain = new char[w * h];
+            for (int x = 0; x < w; x++) {
+                for (int y = 0; y < h; y++) {
+                    E e = level.front(x, y);
+                    if (e.shareable()) terrain[x * h + y] = e.type();
+                }
+            }
+        }
+        Frame f = spare.getAndSet(null);
+        if (f == null || f.types.length != w * h) f = new Frame(w, h);
+        f.width = w;
+        f.height = h;
+        for (int x = 0; x < w; x++) {
+            for (int y = 0; y < h; y++) {
+                f.types[x * h + y] = level.front(x, y).type();
+            }
+        }
+        f.terrain = terrain;
+        Cell<E> player = game.player(level);
+        f.px = player.x();
+        f.py = player.y();
+        f.name = level.name();
+        f.status = game.status(level);
+        f.score = game.score(level);
+        f.success = game.success(level);
+        f.more = more;
+        f.busy = busy;
+        f.task = current;
+        Frame old = latest.getAndSet(f);
+        if (old != null) spare.set(old);
+        else Platform.runLater(this::deliver);
+    }
+
+    // Pass the latest frame, if any, to the listener.
+    private void deliver() {
+        Frame f = take();
+        if (f != null) listener.accept(f);
+    }
+
+    // No testing
+    public static void main(String[] args) {
+        System.out.println("Simulation class OK");
+    }
+}
@@ -0,0 +1,128 @@
+package view;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javafx.geometry.*;
+import javafx.scene.canvas.*;
+import javafx.scene.image.*;
+
+/* Sprites class. Free and open source: see licence.txt.
+
+A sprite atlas holds all the entity images of a game, packed into one image, so
+that the display and the help pages share a single copy, and the display draws
+each cell by copying a rectangle from the atlas.  The atlas is built once at
+startup.  The image files are decoded in parallel, on a thread pool rather than
+the JavaFX application thread, and then copied into the atlas.  All the images
+must be the same size.
+
+Images are identified by their resource paths, e.g. /images/Wall.png.  A path
+without a leading slash, as used in help pages, is treated as being relative to
+the root of the class path. */
+
+public class Sprites {
+    private WritableImage atlas;
+    private Map<String,Integer> index = new HashMap<>();
+    private int cellWidth, cellHeight, columns;
+
+    // Load the images with the given paths, and build the atlas.
+    public Sprites(Collection<String> paths) {
+        List<String> list = new ArrayList<>(new LinkedHashSet<>(paths));
+        Image[] images = decode(list);
+        for (Image img : images) {
+            int cw = (int) img.getWidth(), ch = (int) img.getHeight();
+            if (cellWidth == 0) cellWidth = cw;
+            else if (cw != cellWidth) throw new Error("Bad images");
+            if (cellHeight == 0) cellHeight = ch;
+            else if (ch != cellHeight) throw new Error("Bad images");
+        }
+        int n = Math.max(1, images.length);
+        columns = (int) Math.ceil(Math.sqrt(n));
+        int rows = (n + columns - 1) / columns;
+        atlas = new WritableImage(
+            Math.max(1, columns * cellWidth), Math.max(1, rows * cellHeight));
+        PixelWriter pw = atlas.getPixelWriter();
+        for (int i = 0; i < images.length; i++) {
+            index.put(normal(list.get(i)), i);
+            PixelReader pr = images[i].getPixelReader();
+            pw.setPixels(x(i), y(i), cellWidth, cellHeight, pr, 0, 0);
+        }
+    }
+
+    // Decode the image files in parallel.
+    private static Image[] decode(List<String> paths) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Image>> futures = new ArrayList<>();
+        for (String path : paths) {
+            futures.add(executor.submit(() -> load(path)));
+        }
+        Image[] images = new Image[paths.size()];
+        try {
+            for (int i = 0; i < images.length; i++) {
+                images[i] = futures.get(i).get();
+            }
+        }
+        catch (InterruptedException e) { throw new Error(e); }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new Error(e.getCause());
+        }
+        finally { executor.shutdown(); }
+        return images;
+    }
+
+    // Load one image synchronously.
+    private static Image load(String path) {
+        URL url = Sprites.class.getResource(normal(path));
+        if (url == null) throw new Error("Can't load " + path);
+        Image img = new Image(url.toExternalForm());
+        if (img.isError()) throw new Error("Can't load " + path);
+        return img;
+    }
+
+    // Add a leading slash to a path if it hasn't got one.
+    private static String normal(String path) {
+        return path.startsWith("/") ? path : "/" + path;
+    }
+
+    // Get the size of each image.
+    public int width() { return cellWidth; }
+    public int height() { return cellHeight; }
+
+    // Find the index of the image with a given path, or -1.
+    public int find(String path) {
+        Integer i = index.get(normal(path));
+        return (i == null) ? -1 : i;
+    }
+
+    // Find the position of the i'th image in the atlas.
+    private int x(int i) { return (i % columns) * cellWidth; }
+    private int y(int i) { return (i / columns) * cellHeight; }
+
+    // Draw the i'th image on a canvas at the given position.
+    public void draw(GraphicsContext g, int i, double x, double y) {
+        g.drawImage(atlas, x(i), y(i), cellWidth, cellHeight,
+            x, y, cellWidth, cellHeight);
+    }
+
+    // Copy the pixels of the i'th image into a writable image.
+    public void copy(int i, PixelWriter pw, int x, int y) {
+        PixelReader pr = atlas.getPixelReader();
+        pw.setPixels(x, y, cellWidth, cellHeight, pr, x(i), y(i));
+    }
+
+    // Create a view of the image with a given path, sharing the atlas, or
+    // return null if it isn't in the atlas.
+    public ImageView view(String path) {
+        int i = find(path);
+        if (i < 0) return null;
+        ImageView view = new ImageView(atlas);
+        view.setViewport(new Rectangle2D(x(i), y(i), cellWidth, cellHeight));
+        return view;
+    }
+
+    // No testing
+    public static void main(String[] args) {
+        System.out.println("Sprites class OK");
+    }
+}
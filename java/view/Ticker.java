@@ -7,64 +7,131 @@ import java.util.*;
 
 /* Ticker class. Free and open source: see licence.txt.
 
-This is an animation timer, controlling the level and calling a provided method
-whenever redrawing is needed.  User commands are given to the timer, queued up
-for later execution if an animation is in progress, and passed on to the level.
-The provided method is called with a null ActionEvent argument.
+This is an animation timer, pacing the simulation and passing each frame it
+produces to the display.  User commands are given to the timer, queued up for
+later execution if an animation is in progress, and passed on to the
+simulation, which carries them out on its own thread.
 
 Animations only occur just after the user has pressed a key.  And since entities
 move one cell at a time rather than smoothly, animation steps need not be very
 frequent.  So to avoid unnecessary processing (especially on mobile devices)
-fast animation, e.g. with AnimationTimer, is not used. Instead, PauseTransition
-is used to sleep for one tick when needed.
+fast animation, e.g. with AnimationTimer, is not used at normal speeds.
+Instead, PauseTransition is used to sleep for one tick when needed.
 
 Since pauses can be quite long, an extra unnecessary pause may be perceptible to
-the user.  So, first level.step() is called, then the boolean result is checked
-to see if anything actually happened.  If the result is false, there is no
-pause.  If the result is true, a pause triggered, followed by a call to the
-provided method to make the change visible. */
+the user.  So, the simulation takes the first step of a command straight away,
+and says in its frame whether there are more steps to come.  If not, there is
+no pause.  If so, a pause is triggered, and then the simulation is asked for the
+next step.  Each frame is shown as soon as it arrives, but only a frame from the
+latest command or step task can lead to the next step or the next command, so
+that frames from other tasks, e.g. undo or loading a level, can't start a
+command while another is still being carried out.
+
+At the fastest speeds, the pauses are much shorter than the display's frame
+period, so most steps would pay for a timer and a frame which is never seen.
+Instead, an AnimationTimer is used, driven by the frame pulse.  On each pulse,
+the simulation is asked to take as many steps as the speed implies for the time
+since the last pulse, and only the frame at the end is published.  A pulse which
+comes before the previous batch has been shown is skipped, and its time is
+added to the next batch, so the perceived speed is kept.
+
+In fast-forward mode, e.g. for long replays, there is no animation.  The queued
+commands are handed over together, and the simulation runs each one to
+completion in a tight loop, publishing a frame only once per frame period at a
+given frame rate, or only when the commands run out if the rate is zero. */
 
 class Ticker<E extends Cell<E>> {
-    private Display display;
+    private Display<E> display;
     private Table table;
-    private Level<E> level;
-    private Game<E> game;
+    private Simulation<E> simulation;
     private int speed = 5;
     private PauseTransition pause;
     private Deque<Character> commands;
-    private boolean animating;
+    private boolean animating, paused;
+    private boolean fast;
+    private volatile boolean cancel;
+    private int task = -1;
+    private long frame = 1000000000L / 30;
+    private AnimationTimer pulse;
+    private boolean pulsing, waiting;
+    private long last;
 
     // The speeds go from 0 to 10, halving the pause each time, with default 5
     // (32 milliseconds pause). Pauses below 16 milliseconds involve multiple
     // steps per frame, but are useful to skip quickly through replays.
     private static double[] speeds = {1024,512,256,128,64,32,16,8,4,2,1};
 
-    // Create a new timer, with a given display, table, level, and the ids of
-    // state counters giving the score and success of the level.
-    public Ticker(Display d, Table t, Level<E> l, Game<E> g) {
+    // Pauses shorter than this (in milliseconds) are coalesced into frames.
+    private static double coalesce = 8;
+
+    // The most time (in nanoseconds) one batch of steps can make up for.
+    private static long catchUp = 100000000L;
+
+    // Create a new timer, with a given display, table and simulation.
+    public Ticker(Display<E> d, Table t, Simulation<E> s) {
         display = d;
         table = t;
-        level = l;
-        game = g;
+        simulation = s;
+        simulation.listen(this::arrive);
         Duration time = Duration.seconds(speeds[speed] / 1000.0);
         pause = new PauseTransition(time);
         pause.setOnFinished(this::tick);
         commands = new ArrayDeque<Character>();
+        pulse = new AnimationTimer() {
+            public void handle(long now) { pulse(now); }
+        };
+    }
+
+    // Switch fast-forward mode on or off.  An animation in progress finishes
+    // at once at its next tick.
+    public void fast(boolean b) { fast = b; }
+
+    public boolean fast() { return fast; }
+
+    // Set the frame rate for fast-forward mode, with 0 meaning only redraw when
+    // the commands run out.
+    public void rate(int fps) {
+        frame = (fps <= 0) ? 0 : 1000000000L / fps;
     }
 
     // Pause for a second, e.g. before starting a replay.
     public void pause() {
-        PauseTransition pause = new PauseTransition(Duration.seconds(1));
-        pause.setOnFinished(this::endPause);
-        animating = true;
-        pause.play();
+        PauseTransition delay = new PauseTransition(Duration.seconds(1));
+        delay.setOnFinished(this::endPause);
+        paused = true;
+        delay.play();
     }
 
     private void endPause(ActionEvent e) {
+        paused = false;
+        backlog();
+    }
+
+    // Load a level on the simulation thread, abandoning any animation or
+    // fast-forward batch in progress.  Frames from the abandoned command are
+    // still shown, but don't lead to further steps.  Then carry on with any
+    // commands which are waiting.
+    public void load(String path) {
+        cancel();
+        pause.stop();
+        if (pulsing) {
+            pulsing = false;
+            pulse.stop();
+        }
+        waiting = false;
         animating = false;
+        task = -1;
+        simulation.submit(level -> {
+            cancel = false;
+            level.load(path);
+            return false;
+        });
         backlog();
     }
 
+    // Ask a fast-forward batch to stop after its current command.
+    public void cancel() { cancel = true; }
+
     public void faster(ActionEvent e) {
         speed++;
         if (speed > 10) speed = 10;
@@ -77,42 +144,126 @@ class Ticker<E extends Cell<E>> {
         pause.setDuration(Duration.seconds(speeds[speed] / 1000.0));
     }
 
+    // Undo or redo a command, but only when no animation is in progress and
+    // no commands are waiting.
+    public void undo(ActionEvent e) {
+        if (animating || ! commands.isEmpty()) return;
+        simulation.submit(level -> { level.undo(); return false; });
+    }
+
+    public void redo(ActionEvent e) {
+        if (animating || ! commands.isEmpty()) return;
+        simulation.submit(level -> { level.redo(); return false; });
+    }
+
     // Accept a user command.
     public void command(char cmd) {
         commands.addLast(cmd);
         backlog();
     }
 
-    // Check for queued commands.  For each, make the player's move, then see if
-    // there is a subsequent animation needing pauses.
+    // Check for queued commands.  Hand the next one to the simulation, which
+    // carries it out and takes the first step.  In fast-forward mode, hand
+    // them all over, to be run to completion.
     void backlog() {
-        if (animating) return;
-        boolean b = false;
-        while (! b) {
-            Character cmd = commands.pollFirst();
-            if (cmd == null) return;
+        if (paused || animating || commands.isEmpty()) return;
+        animating = true;
+        if (fast) {
+            StringBuilder sb = new StringBuilder();
+            while (! commands.isEmpty()) sb.append(commands.pollFirst());
+            String cmds = sb.toString();
+            long period = frame;
+            task = simulation.submit(level -> fastForward(level, cmds, period));
+            return;
+        }
+        char cmd = commands.pollFirst();
+        task = simulation.submit(level -> {
             level.command(cmd);
-            b = level.step();
-            display.redraw();
+            return level.step();
+        });
+    }
+
+    // On the simulation thread, run commands to completion without animation,
+    // publishing a frame whenever one is due.
+    private boolean fastForward(Level<E> level, String cmds, long period) {
+        long start = System.nanoTime();
+        for (int i = 0; i < cmds.length() && ! cancel; i++) {
+            level.command(cmds.charAt(i));
+            while (level.step()) { }
+            boolean last = i == cmds.length() - 1;
+            if (period == 0 || last || System.nanoTime() - start < period) {
+                continue;
+            }
+            simulation.progress();
+            start = System.nanoTime();
         }
-        animating = true;
-        pause.play();
+        return false;
     }
 
-    // Called at the end of a pause.  Draw the changes from the previous step,
-    // then take the next step and see if the animation has finished.
+    // Called at the end of a pause.  Ask the simulation for the next step, or
+    // to finish the animation at once if fast-forward mode has been switched
+    // on.
     void tick(ActionEvent e) {
-        display.redraw();
-        String name = level.name();
-        table.current(name);
-        table.score(name, game.score(level));
-        table.success(name, game.success(level));
-        boolean b = level.step();
-        if (b) pause.play();
-        else {
-            animating = false;
-            backlog();
+        if (! fast) {
+            task = simulation.submit(level -> level.step());
+            return;
+        }
+        task = simulation.submit(level -> {
+            while (level.step()) { }
+            return false;
+        });
+    }
+
+    // Called on the application thread when a frame arrives.  Show it, and
+    // give it back.  Then, if it comes from the latest command or step task,
+    // pause before the next step if the command has more to do, or else move
+    // on to the next command.
+    private void arrive(Frame f) {
+        display.show(f);
+        table.current(f.name);
+        table.score(f.name, f.score);
+        table.success(f.name, f.success);
+        boolean more = f.more, busy = f.busy, latest = f.task == task;
+        simulation.release(f);
+        if (busy || ! latest || ! animating) return;
+        if (more && speeds[speed] < coalesce) {
+            waiting = false;
+            if (! pulsing) {
+                pulsing = true;
+                last = System.nanoTime();
+                pulse.start();
+            }
+            return;
+        }
+        if (pulsing) {
+            pulsing = false;
+            pulse.stop();
+        }
+        if (more) {
+            pause.play();
+            return;
+        }
+        animating = false;
+        backlog();
+    }
+
+    // Called on each frame pulse while coalescing.  Unless the last batch of
+    // steps is still waiting to be shown, ask the simulation for the number of
+    // steps due since the last batch.
+    private void pulse(long now) {
+        if (waiting) return;
+        long gap = Math.min(now - last, catchUp);
+        last = now;
+        waiting = true;
+        if (fast) {
+            tick(null);
+            return;
         }
+        int n = (int) Math.max(1, gap / (speeds[speed] * 1000000));
+        task = simulation.submit(level -> {
+            for (int i = 0; i < n; i++) if (! level.step()) return false;
+            return true;
+        });
     }
 
     // No testing
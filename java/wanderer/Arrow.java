@@ -17,6 +17,15 @@ class Arrow extends Entity {
         normal = is(LeftArrow) ? Left : Right;
     }
 
+    public void reset() { moving = false; normal = deflect = null; }
+
+    public void save(Snapshot s) { s.put(moving); s.put(normal); }
+
+    public void restore(Snapshot.Reader r) {
+        moving = r.getBoolean();
+        normal = r.getDirection();
+    }
+
     // Move by one step, possibly deflected or stopped.
     public void act() {
         deflect = normal;
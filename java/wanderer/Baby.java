@@ -44,6 +44,12 @@ class Baby extends Entity {
         agent(false);
     }
 
+    public void reset() { go = null; }
+
+    public void save(Snapshot s) { s.put(go); }
+
+    public void restore(Snapshot.Reader r) { go = r.getDirection(); }
+
     // Get to the front, then move, then hide while the knock-on effects take
     // place, then show.
     public void act() {
@@ -72,7 +78,7 @@ class Baby extends Entity {
     void meetEntity(Entity e) {
         queue(true);
         advance(go);
-        move(e);
+        move(go);
         hide();
     }
 
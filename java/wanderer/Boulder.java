@@ -14,6 +14,12 @@ class Boulder extends Entity {
         moving = false;
     }
 
+    public void reset() { moving = false; }
+
+    public void save(Snapshot s) { s.put(moving); }
+
+    public void restore(Snapshot.Reader r) { moving = r.getBoolean(); }
+
     public void act() {
         Direction go = Here;
         Entity target = find(Down);
@@ -88,14 +88,17 @@ abstract class Entity extends Cell<Entity> {
 
     // Define extra state variables: the number of stars left to find, the
     // arrival point for the teleport, and a message to display on screen.
-    static final String
-        PLAYER = "PLAYER", SCORE = "SCORE", MOVES = "MOVES", SUCCESS = "SUCCESS",
-        STARS = "STARS", ARRIVAL = "ARRIVAL", MESSAGE = "MESSAGE";
+    // Each is registered once, to get a handle for fast access.
+    static final int
+        PLAYER = variable("PLAYER"), SCORE = variable("SCORE"),
+        MOVES = variable("MOVES"), SUCCESS = variable("SUCCESS"),
+        STARS = variable("STARS"), ARRIVAL = variable("ARRIVAL"),
+        MESSAGE = variable("MESSAGE");
 
     // For each of the four major directions, there is a list of six places to
     // look to see if any entities should be triggered into action.  They are
     // the six cells 'behind' the direction of motion.
-    private static Direction[]
+    static final Direction[]
         majors = {Down, Left, Right, Up};
     private static Direction[]
         UpList = {Here, Down, Right, Left, DownRight, DownLeft},
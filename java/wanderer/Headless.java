@@ -0,0 +1,142 @@
+package wanderer;
+import static wanderer.Entity.*;
+import model.*;
+import java.io.*;
+import java.util.*;
+
+/* Headless class. Free and open source: see licence.txt.
+
+Play Wanderer without graphics, and without needing JavaFX, e.g. for batch jobs.
+Commands are read one per line, and only the first character of each line is
+used, so a recording can be used as input.  The change line for each command is
+written to standard output, in the format of a recording, followed by a final
+line giving the result.  The command line arguments accepted are:
+
+    java ... wanderer.Headless level [in]
+    java ... wanderer.Headless -c recording...
+
+The first form plays the given level, e.g. 27, with commands from the given
+file, or standard input.  With standard input, output is flushed after each
+command, so that the program can be driven interactively through pipes.
+
+The second form checks recordings, e.g. from players, replaying each one in its
+level and comparing the changes to the recorded ones, and the state hashes too
+if a binary recording has them.  Recordings can be text or binary, as described
+in the Replay class.  As with the Controller class, a recording name is a level
+name with a one-letter suffix, and any extension is ignored.  One line is
+written for each recording, giving its name, the line number of the first
+mismatch or 0, and the result, or an error message.  The exit code is 1 if any
+recording fails. */
+
+class Headless {
+    private Level<Entity> level = new Level<>(new Test()::hatch);
+    private PrintWriter out = new PrintWriter(
+        new BufferedWriter(new OutputStreamWriter(System.out)));
+
+    // Load a level, given its name.
+    void load(String name) {
+        level.load("/levels/" + name + ".txt");
+    }
+
+    // Carry out one command, and return the change line.
+    String command(char cmd) {
+        level.command(cmd);
+        while (level.step()) { }
+        return level.changes();
+    }
+
+    // Describe the result so far.
+    String result() {
+        return "score " + level.count(SCORE) +
+            " success " + (level.count(SUCCESS) > 0) +
+            " moves " + level.count(MOVES);
+    }
+
+    // Play a level with commands from a reader, streaming the change lines,
+    // and then the result.
+    void play(String name, BufferedReader in, boolean flush)
+    throws IOException {
+        load(name);
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.length() == 0) continue;
+            out.println(command(line.charAt(0)));
+            if (flush) out.flush();
+        }
+        out.println(result());
+        out.flush();
+    }
+
+    // Check a recording file, and write a line describing the outcome.  Return
+    // true if the recording matches.
+    boolean check(String path) throws IOException {
+        String name = new File(path).getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        load(name.substring(0, name.length() - 1));
+        int bad = 0;
+        Replay.Reader in = new Replay.Reader(new FileInputStream(path));
+        Replay recorded = new Replay();
+        while (in.read(recorded)) {
+            level.command(recorded.command());
+            while (level.step()) { }
+            Replay line = level.line();
+            boolean ok = line.matches(recorded);
+            if (recorded.hashed()) ok = ok && recorded.hash() == line.hash();
+            if (bad == 0 && ! ok) bad = in.number();
+        }
+        in.close();
+        out.println(name + " " + bad + " " + result());
+        return bad == 0;
+    }
+
+    // Check several recordings, and return true if they all match.
+    boolean check(List<String> paths) {
+        boolean ok = true;
+        for (String path : paths) {
+            try { ok = check(path) && ok; }
+            catch (IOException | Error e) {
+                out.println(path + " error " + e.getMessage());
+                ok = false;
+            }
+        }
+        out.flush();
+        return ok;
+    }
+
+    private static void usage() {
+        System.err.println("Use:");
+        System.err.println("  java ... wanderer.Headless level [in]");
+        System.err.println("  java ... wanderer.Headless -c recording...");
+    }
+
+    // Run from the command line.  With no arguments, just describe the usage.
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) { usage(); return; }
+        Headless h = new Headless();
+        List<String> list = Arrays.asList(args);
+        try {
+            if (args[0].equals("-c")) {
+                if (! h.check(list.subList(1, args.length))) System.exit(1);
+            }
+            else if (args[0].startsWith("-") || args.length > 2) {
+                usage();
+                System.exit(1);
+            }
+            else if (args.length == 1) {
+                Reader r = new InputStreamReader(System.in);
+                h.play(args[0], new BufferedReader(r), true);
+            }
+            else {
+                BufferedReader in = new BufferedReader(new FileReader(args[1]));
+                h.play(args[0], in, false);
+                in.close();
+            }
+        }
+        catch (IOException | Error e) {
+            h.out.flush();
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
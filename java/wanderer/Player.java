@@ -10,6 +10,7 @@ class Player extends Entity {
 
     public void wake() {
         background(Space);
+        reserve(Dead);
         set(PLAYER, this);
         agent(true);
         set(MESSAGE, "Use arrow keys to move, space to stand still");
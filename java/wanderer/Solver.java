@@ -0,0 +1,309 @@
+package wanderer;
+import static wanderer.Entity.*;
+import model.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/* Solver class. Free and open source: see licence.txt.
+
+Search for the shortest solution to a level, driving the real entity classes
+through the level's command and step methods, with no graphics.  The command
+line arguments accepted are:
+
+    java ... wanderer.Solver [-n nodes] [-t threads] [-d dir] level...
+
+The search is best-first, in order of moves made and then of score, so the
+first solution found uses the fewest moves, and has the best score of all the
+solutions with that number of moves.  Each layer of states with the same number
+of moves is expanded in parallel, using all cores unless -t is given, with a
+level object for each thread.  A state is expanded by getting to it, then
+trying each of the five commands in turn, undoing each one afterwards.  To get
+to a state, the level is restored from the snapshot of the nearest ancestor
+which has one, and the commands since then are replayed.  A snapshot is kept
+for the states in every eighth layer, taken when they are expanded.
+
+States which have already been reached are skipped, using a transposition table
+of level hashes.  The hashes ignore the score, which doesn't affect play, and
+the moves remaining, which can only be fewer when a state is reached again.
+The table has a fixed size, and when it is full, old hashes are overwritten, so
+a state may occasionally be explored twice, but memory doesn't run out.  The
+search gives up at the end of the layer in which the number of states expanded
+reaches a given limit, default 1000000.
+
+A line describing the outcome is written to standard error for each level.  The
+solution is written in the format of a recording, to standard output for a
+single level, or to a file named after the level with suffix s, e.g. 27s.txt,
+in the given directory, so that it can be played back with the -p option. */
+
+class Solver {
+    private static final String COMMANDS = "^v<>.";
+    private static final int KEYFRAME = 8, PROBES = 4;
+    private int threads, limit;
+    private ExecutorService executor;
+    private Level<Entity>[] levels;
+    private long[] table;
+    private Node root;
+
+    // A state, reached from its parent by a command.
+    static class Node {
+        Node parent;
+        char command;
+        int moves, score;
+        long hash;
+        Snapshot snapshot;
+    }
+
+    // The outcome of trying a command on a state.
+    static class Child extends Node {
+        boolean success;
+    }
+
+    // Create a solver which uses the given number of threads, and expands at
+    // most the given number of states for each level.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    Solver(int threads, int limit) {
+        this.threads = threads;
+        this.limit = limit;
+        executor = Executors.newFixedThreadPool(threads);
+        levels = new Level[threads];
+        for (int i = 0; i < threads; i++) {
+            levels[i] = new Level<>(new Test()::hatch);
+            levels[i].undoable(true);
+        }
+        int size = Integer.highestOneBit(Math.max(1024, limit)) * 4;
+        table = new long[size];
+    }
+
+    // Shut down the threads.
+    void close() { executor.shutdown(); }
+
+    // Search for a solution to a level, given its name, and return the final
+    // node, or null if there is no solution within the limit.  Also report
+    // the number of states expanded.
+    Node solve(String name, int[] expanded) {
+        return solve(name, "", expanded);
+    }
+
+    // Search for a solution to a level, starting after some given commands,
+    // e.g. to finish off a partial solution.  The commands leading to the
+    // final node are the ones after the given commands.
+    Node solve(String name, String start, int[] expanded) {
+        for (Level<Entity> level : levels) load(level, name);
+        for (char cmd : start.toCharArray()) {
+            levels[0].command(cmd);
+            while (levels[0].step()) { }
+        }
+        Arrays.fill(table, 0);
+        root = new Node();
+        root.score = levels[0].count(SCORE);
+        root.hash = hash(levels[0]);
+        root.snapshot = levels[0].snapshot();
+        seen(root.hash);
+        List<Node> layer = new ArrayList<>(List.of(root));
+        expanded[0] = 0;
+        while (! layer.isEmpty() && expanded[0] < limit) {
+            expanded[0] += layer.size();
+            List<Child> children = expand(layer);
+            children.sort((a, b) -> b.score - a.score);
+            layer = new ArrayList<>();
+            for (Child c : children) {
+                if (c.success) return c;
+                if (! seen(c.hash)) layer.add(c);
+            }
+        }
+        return null;
+    }
+
+    // Expand a layer, in parallel, and return the live children.
+    private List<Child> expand(List<Node> layer) {
+        List<Callable<List<Child>>> tasks = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Level<Entity> level = levels[t];
+            int start = t * layer.size() / threads;
+            int end = (t + 1) * layer.size() / threads;
+            tasks.add(() -> expand(level, layer.subList(start, end)));
+        }
+        List<Child> children = new ArrayList<>();
+        try {
+            for (Future<List<Child>> f : executor.invokeAll(tasks)) {
+                children.addAll(f.get());
+            }
+        }
+        catch (InterruptedException e) { throw new Error(e); }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new Error(e.getCause());
+        }
+        return children;
+    }
+
+    // Expand some nodes, using a given level object.
+    private List<Child> expand(Level<Entity> level, List<Node> nodes) {
+        List<Child> children = new ArrayList<>();
+        for (Node node : nodes) {
+            reach(level, node);
+            if (node.snapshot == null && node.moves % KEYFRAME == 0) {
+                node.snapshot = level.snapshot();
+                node.snapshot.trim();
+            }
+            for (int i = 0; i < COMMANDS.length(); i++) {
+                Child c = child(level, node, COMMANDS.charAt(i));
+                if (c != null) children.add(c);
+                level.undo();
+            }
+        }
+        return children;
+    }
+
+    // Try a command, and return the resulting child, or null if the player
+    // has died or nothing has changed.
+    private Child child(Level<Entity> level, Node node, char cmd) {
+        level.command(cmd);
+        while (level.step()) { }
+        boolean success = level.count(SUCCESS) > 0;
+        if (! success && level.entity(PLAYER).hidden()) return null;
+        long hash = hash(level);
+        if (hash == node.hash) return null;
+        Child c = new Child();
+        c.parent = node;
+        c.command = cmd;
+        c.moves = node.moves + 1;
+        c.score = level.count(SCORE);
+        c.hash = hash;
+        c.success = success;
+        return c;
+    }
+
+    // Get a level object into the state of a node.
+    private void reach(Level<Entity> level, Node node) {
+        Node n = node;
+        StringBuilder path = new StringBuilder();
+        while (n.snapshot == null) {
+            path.append(n.command);
+            n = n.parent;
+        }
+        level.restore(n.snapshot);
+        for (int i = path.length() - 1; i >= 0; i--) {
+            level.command(path.charAt(i));
+            while (level.step()) { }
+        }
+    }
+
+    // Find the hash of a level's state, ignoring the score and moves.
+    private static long hash(Level<Entity> level) {
+        return level.hash(SCORE, MOVES);
+    }
+
+    // Check whether a state has been seen before, and add it to the table if
+    // not.  Probe a few entries, and overwrite the first if they are all in
+    // use.  Zero marks an unused entry.
+    private boolean seen(long hash) {
+        if (hash == 0) hash = 1;
+        int mask = table.length - 1, i = (int) hash & mask;
+        for (int p = 0; p < PROBES; p++) {
+            int j = (i + p) & mask;
+            if (table[j] == hash) return true;
+            if (table[j] != 0) continue;
+            table[j] = hash;
+            return false;
+        }
+        table[i] = hash;
+        return false;
+    }
+
+    // Load a level, given its name.
+    private static void load(Level<Entity> level, String name) {
+        level.load("/levels/" + name + ".txt");
+    }
+
+    // Find the commands leading to a node.
+    static String commands(Node node) {
+        StringBuilder sb = new StringBuilder();
+        for (Node n = node; n.parent != null; n = n.parent) {
+            sb.append(n.command);
+        }
+        return sb.reverse().toString();
+    }
+
+    // Replay the commands leading to a node on a fresh level object, and
+    // write the change lines, in the format of a recording.
+    void record(String name, Node node, PrintWriter out) {
+        Level<Entity> level = new Level<>(new Test()::hatch);
+        load(level, name);
+        for (char cmd : commands(node).toCharArray()) {
+            level.command(cmd);
+            while (level.step()) { }
+            out.println(level.changes());
+        }
+        out.flush();
+    }
+
+    private static void usage() {
+        System.err.println("Use:");
+        System.err.println(
+            "  java ... wanderer.Solver [-n nodes] [-t threads] [-d dir] " +
+            "level...");
+    }
+
+    // Run from the command line.  With no arguments, just describe the usage.
+    // The exit code is 1 if any level isn't solved.
+    public static void main(String[] args) {
+        if (args.length == 0) { usage(); return; }
+        int threads = Runtime.getRuntime().availableProcessors();
+        int limit = 1000000;
+        String dir = null;
+        List<String> names = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("-n")) limit = Integer.parseInt(args[++i]);
+                else if (arg.equals("-t")) {
+                    threads = Integer.parseInt(args[++i]);
+                }
+                else if (arg.equals("-d")) dir = args[++i];
+                else if (arg.startsWith("-")) throw new Error("Bad option");
+                else names.add(arg);
+            }
+        }
+        catch (RuntimeException | Error e) { usage(); System.exit(1); }
+        if (names.size() > 1 && dir == null) dir = ".";
+        Solver solver = new Solver(threads, limit);
+        boolean ok = true;
+        try {
+            for (String name : names) ok = solver.run(name, dir) && ok;
+        }
+        catch (IOException | Error e) {
+            System.err.println("Error: " + e.getMessage());
+            ok = false;
+        }
+        solver.close();
+        if (! ok) System.exit(1);
+    }
+
+    // Solve one level, report the outcome, and write out the solution.
+    private boolean run(String name, String dir) throws IOException {
+        long start = System.nanoTime();
+        int[] expanded = new int[1];
+        Node node = solve(name, expanded);
+        double secs = (System.nanoTime() - start) / 1e9;
+        String stats = String.format(
+            " states %d time %.1fs", expanded[0], secs);
+        if (node == null) {
+            System.err.println(name + " unsolved" + stats);
+            return false;
+        }
+        System.err.println(
+            name + " solved moves " + node.moves + " score " + node.score +
+            stats);
+        if (dir == null) {
+            record(name, node, new PrintWriter(System.out));
+            return true;
+        }
+        File file = new File(dir, name + "s.txt");
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        record(name, node, out);
+        out.close();
+        return true;
+    }
+}
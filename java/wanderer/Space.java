@@ -9,24 +9,31 @@ should have a space behind it. Spaces don't move and are used to represent grid
 positions, being put into the event queue as a triggering mechanism. A space
 'acts' by checking the surrounding entities to see if they can start moving into
 (or in the direction of) its grid position. At most one entity is allowed to
-move to the position. */
+move to the position.
+
+Spaces are shared, so that a level has one space object rather than one for
+each cell.  The direction being checked is only needed during a turn, and a
+space keeps its position while it acts, since a nested turn of an entity moving
+towards it may find the space object elsewhere. */
 
 class Space extends Entity {
     private Direction go;
 
+    public boolean shareable() { return true; }
+
     public void act() {
-        Direction[] dirs = {Down, Left, Right, Up};
-        for (Direction d : dirs) {
+        int x0 = x(), y0 = y();
+        for (Direction d : majors) {
             changed(false);
-            Entity it = find(d.back());
+            Entity it = find(x0, y0, d.back());
             go = d;
             meet(it);
             if (changed()) return;
         }
     }
 
-    void meetBoulder(Entity e) { if (go == Down) e.act(); }
-    void meetLeftArrow(Entity e) { if (go == Left) e.act(); }
-    void meetRightArrow(Entity e) { if (go == Right) e.act(); }
-    void meetBalloon(Entity e) { if (go == Up) e.act(); }
+    void meetBoulder(Entity e) { if (go == Down) e.turn(); }
+    void meetLeftArrow(Entity e) { if (go == Left) e.turn(); }
+    void meetRightArrow(Entity e) { if (go == Right) e.turn(); }
+    void meetBalloon(Entity e) { if (go == Up) e.turn(); }
 }
@@ -3,10 +3,17 @@ import static wanderer.Entity.*;
 import model.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.net.*;
 
 /* Test class. Free and open source: see licence.txt.
 
-The Test class drives non-graphics level testing. */
+The Test class drives non-graphics level testing.  The replay tests are run in
+parallel on a fork-join pool, each with its own level object.  Every failing
+line of every test is reported, with the time taken by each test, and the
+program exits with a non-zero code if anything fails. */
 
 class Test {
 
@@ -55,11 +62,399 @@ class Test {
         return levels;
     }
 
-    // Do comprehensive replay testing.
+    // The outcome of one replay test.
+    static class Result {
+        String name;
+        List<String> failures = new ArrayList<>();
+        long nanos, steps;
+    }
+
+    // Run the i'th replay test on a new level object, with the grid checking
+    // its consistency, catching any crash as a failure.
+    Result run(int i) {
+        Result r = new Result();
+        r.name = testNames[i];
+        Level<Entity> level = new Level<>(this::hatch);
+        level.debug(true);
+        long start = System.nanoTime();
+        try {
+            level.load(levels()[i]);
+            r.failures = level.check(tests()[i]);
+        }
+        catch (Throwable e) {
+            r.failures.add("Test " + r.name + " crashed: " + e);
+        }
+        r.nanos = System.nanoTime() - start;
+        r.steps = level.steps();
+        return r;
+    }
+
+    // Run all the replay tests in parallel, report the times and failures,
+    // and return the number of tests that fail.
+    int runAll() {
+        ForkJoinPool pool = new ForkJoinPool();
+        List<ForkJoinTask<Result>> tasks = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < testNames.length; i++) {
+            int n = i;
+            tasks.add(pool.submit(() -> run(n)));
+        }
+        List<Result> results = new ArrayList<>();
+        for (ForkJoinTask<Result> task : tasks) results.add(task.join());
+        long time = System.nanoTime() - start;
+        pool.shutdown();
+        int failed = 0;
+        for (Result r : results) {
+            double ms = r.nanos / 1e6, rate = r.steps / (r.nanos / 1e9);
+            String status = r.failures.isEmpty() ? "" : " FAILED";
+            System.out.printf("%-5s %8.2f ms %12.0f steps/s%s\n", r.name, ms,
+                rate, status);
+        }
+        for (Result r : results) {
+            if (r.failures.isEmpty()) continue;
+            failed++;
+            for (String f : r.failures) System.out.println(f);
+        }
+        System.out.printf("%d tests, %d failed, %.1f ms on %d threads\n",
+            results.size(), failed, time / 1e6, pool.getParallelism());
+        return failed;
+    }
+
+    // Time the replay tests, without consistency checks, repeating them n
+    // times after a warm-up, and report the average time per run.
+    void bench(int n) {
+        Level<Entity> level = new Level<>(this::hatch);
+        for (int i = 0; i < n; i++) level.tests(tests(), levels());
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) level.tests(tests(), levels());
+        long time = System.nanoTime() - start;
+        System.out.printf("Replay suite: %.1f ms per run\n", time / 1e6 / n);
+    }
+
+    // Read the lines of a recording file.
+    List<String> read(String file) {
+        InputStream is = getClass().getResourceAsStream(file);
+        Scanner in = new Scanner(is);
+        List<String> lines = new ArrayList<>();
+        while (in.hasNextLine()) lines.add(in.nextLine());
+        in.close();
+        return lines;
+    }
+
+    // Check that replaying the recordings doesn't allocate memory once each
+    // level is loaded, using the JVM's count of bytes allocated by a thread.
+    // Replay them all once first, so that classes are loaded and buffers have
+    // reached their full size. The JIT compiler can cause an occasional
+    // one-off allocation, so a pass which allocates is repeated, and the test
+    // fails only if three passes in a row allocate.  Also check that reloading
+    // a level recycles its entities, rather than allocating new ones.
+    void allocations() {
+        Level<Entity> level = new Level<>(this::hatch);
+        level.tests(tests(), levels());
+        long bytes = 0;
+        for (int pass = 0; pass < 3; pass++) {
+            bytes = allocations(level);
+            if (bytes == 0) break;
+        }
+        if (bytes > 0) throw new Error("Play allocated " + bytes + " bytes");
+        for (int pass = 0; pass < 3; pass++) {
+            bytes = reloads(level);
+            if (bytes < 1024) return;
+        }
+        throw new Error("Reloading allocated " + bytes + " bytes");
+    }
+
+    // Load each level twice, and return the most bytes allocated by a reload.
+    long reloads(Level<Entity> level) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) mx;
+        long most = 0;
+        for (String l : levels()) {
+            level.load(l);
+            long before = bean.getCurrentThreadAllocatedBytes();
+            level.load(l);
+            long bytes = bean.getCurrentThreadAllocatedBytes() - before;
+            most = Math.max(most, bytes);
+        }
+        return most;
+    }
+
+    // Replay all the recordings, and return the number of bytes allocated
+    // during commands and steps.
+    long allocations(Level<Entity> level) {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) mx;
+        String[] ts = tests(), ls = levels();
+        long total = 0;
+        for (int i = 0; i < ts.length; i++) {
+            List<String> lines = read(ts[i]);
+            level.load(ls[i]);
+            for (int n = 0; n < lines.size(); n++) {
+                String line = lines.get(n);
+                char key = line.charAt(0);
+                long before = bean.getCurrentThreadAllocatedBytes();
+                level.command(key);
+                while (level.step()) { }
+                total += bean.getCurrentThreadAllocatedBytes() - before;
+                if (! level.changes().equals(line)) {
+                    throw new Error(
+                        "Test " + ts[i] + " fails on line " + (n+1));
+                }
+            }
+        }
+        return total;
+    }
+
+    // Check snapshots by replaying each recording half way, taking a snapshot,
+    // and then replaying the rest three times: straight on, after restoring
+    // the same level object, and after restoring into a different one.  Check
+    // that the hash is restored, and that the end hash is the same each time.
+    void snapshots() {
+        Level<Entity> level = new Level<>(this::hatch);
+        Level<Entity> other = new Level<>(this::hatch);
+        level.debug(true);
+        other.debug(true);
+        String[] ts = tests(), ls = levels();
+        for (int i = 0; i < ts.length; i++) {
+            List<String> lines = read(ts[i]);
+            int half = lines.size() / 2;
+            level.load(ls[i]);
+            other.load(ls[i]);
+            replay(level, ts[i], lines, 0, half);
+            Snapshot s = level.snapshot();
+            long h = level.hash();
+            replay(level, ts[i], lines, half, lines.size());
+            long end = level.hash();
+            int loads = level.loads();
+            level.restore(s);
+            claim(level.hash() == h && level.loads() == loads + 1);
+            replay(level, ts[i], lines, half, lines.size());
+            claim(level.hash() == end);
+            other.restore(s);
+            claim(other.hash() == h);
+            replay(other, ts[i], lines, half, lines.size());
+            claim(other.hash() == end);
+        }
+    }
+
+    // Check undo and redo.  For each recording, replay it all, undo it all,
+    // redo half of it and replay the rest, then undo back to half way and
+    // replay the rest again, checking that the hash returns to its old values.
+    void undo() {
+        Level<Entity> level = new Level<>(this::hatch);
+        level.debug(true);
+        level.undoable(true);
+        String[] ts = tests(), ls = levels();
+        for (int i = 0; i < ts.length; i++) {
+            List<String> lines = read(ts[i]);
+            int n = lines.size(), half = n / 2;
+            level.load(ls[i]);
+            long start = level.hash();
+            replay(level, ts[i], lines, 0, half);
+            long middle = level.hash();
+            replay(level, ts[i], lines, half, n);
+            long end = level.hash();
+            for (int k = 0; k < n; k++) claim(level.undo());
+            claim(! level.undo() && level.hash() == start);
+            for (int k = 0; k < half; k++) claim(level.redo());
+            claim(level.hash() == middle);
+            replay(level, ts[i], lines, half, n);
+            claim(! level.redo() && level.hash() == end);
+            for (int k = half; k < n; k++) claim(level.undo());
+            claim(level.hash() == middle);
+            replay(level, ts[i], lines, half, n);
+            claim(level.hash() == end);
+        }
+    }
+
+    // Check binary recordings.  Check each recording while recording it again
+    // in binary with hashes, then check the level against the new recording,
+    // and check that a wrong hash is detected.  Check the last recording in a
+    // fresh copy of the classes, with state variables registered in a
+    // different order, since hashes are saved and must not depend on it.
+    void binary() {
+        Level<Entity> level = new Level<>(this::hatch);
+        String[] ts = tests(), ls = levels();
+        try {
+            for (int i = 0; i < ts.length; i++) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Replay.Writer w = new Replay.Writer(out, true);
+                level.load(ls[i]);
+                level.record(w);
+                claim(level.check(ts[i]).isEmpty());
+                level.record((Replay.Writer) null);
+                w.close();
+                claim(! w.checkError());
+                byte[] bytes = out.toByteArray();
+                level.load(ls[i]);
+                InputStream in = new ByteArrayInputStream(bytes);
+                claim(level.check(in).isEmpty());
+                if (i == ts.length - 1) claim(reordered(ls[i], bytes));
+                bytes[bytes.length - 1] ^= 1;
+                level.load(ls[i]);
+                in = new ByteArrayInputStream(bytes);
+                List<String> failures = level.check(in);
+                claim(failures.size() == 1);
+                claim(failures.get(0).endsWith("State hash differs"));
+            }
+        }
+        catch (Exception e) { throw new Error(e); }
+    }
+
+    // Check a level against a recording in a new class loader, registering an
+    // extra state variable first so that all the handles are different.
+    private boolean reordered(String level, byte[] bytes) throws Exception {
+        String[] path =
+            System.getProperty("java.class.path").split(File.pathSeparator);
+        URL[] urls = new URL[path.length];
+        for (int i = 0; i < path.length; i++) {
+            urls[i] = new File(path[i]).toURI().toURL();
+        }
+        ClassLoader parent = ClassLoader.getPlatformClassLoader();
+        try (URLClassLoader loader = new URLClassLoader(urls, parent)) {
+            Class<?> state = loader.loadClass("model.State");
+            Method variable = state.getDeclaredMethod("variable", String.class);
+            variable.setAccessible(true);
+            variable.invoke(null, "REORDER");
+            Class<?> test = loader.loadClass("wanderer.Test");
+            Constructor<?> make = test.getDeclaredConstructor();
+            make.setAccessible(true);
+            Method check =
+                test.getDeclaredMethod("check", String.class, byte[].class);
+            check.setAccessible(true);
+            return (Boolean) check.invoke(make.newInstance(), level, bytes);
+        }
+    }
+
+    // Check a level against a recording.
+    private boolean check(String level, byte[] bytes) throws IOException {
+        Level<Entity> l = new Level<>(this::hatch);
+        l.load(level);
+        return l.check(new ByteArrayInputStream(bytes)).isEmpty();
+    }
+
+    // Check seeking in a playback.  For each recording, find the hash after
+    // each command by replaying it straight through, then seek to various
+    // points, forwards and backwards, and check the hashes.
+    void seeking() {
+        Level<Entity> level = new Level<>(this::hatch);
+        String[] ts = tests(), ls = levels();
+        try {
+            for (int i = 0; i < ts.length; i++) {
+                List<String> lines = read(ts[i]);
+                int n = lines.size();
+                long[] hashes = new long[n + 1];
+                level.load(ls[i]);
+                hashes[0] = level.hash();
+                for (int k = 0; k < n; k++) {
+                    level.command(lines.get(k).charAt(0));
+                    while (level.step()) { }
+                    hashes[k + 1] = level.hash();
+                }
+                level.load(ls[i]);
+                InputStream is = getClass().getResourceAsStream(ts[i]);
+                Playback<Entity> p =
+                    new Playback<>(level, new Replay.Reader(is));
+                claim(p.size() == n);
+                int[] points = { n / 2, n, 1, n - 1, n / 3, 0, n + 5 };
+                for (int k : points) {
+                    p.seek(k);
+                    int m = Math.min(k, n);
+                    claim(p.position() == m && level.hash() == hashes[m]);
+                }
+            }
+        }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Check the solver on a small level, by replaying its solution.
+    void solver() {
+        Solver solver = new Solver(2, 1000);
+        Solver.Node node;
+        try { node = solver.solve("t2", new int[1]); }
+        finally { solver.close(); }
+        claim(node != null && node.moves == 2);
+        Level<Entity> level = new Level<>(this::hatch);
+        level.load("/levels/t2.txt");
+        for (char cmd : Solver.commands(node).toCharArray()) {
+            level.command(cmd);
+            while (level.step()) { }
+        }
+        claim(level.count(SUCCESS) > 0 && level.count(SCORE) == node.score);
+    }
+
+    // Check the solver with several threads on a real level, sharing the
+    // snapshots of the states between them, by finishing off a recording of
+    // the level from a few moves before the end.  Check the recording made
+    // from the solution.
+    void solverThreads() {
+        Level<Entity> level = new Level<>(this::hatch);
+        StringBuilder start = new StringBuilder();
+        try {
+            Replay.Reader in = new Replay.Reader(
+                getClass().getResourceAsStream("/tests/1a.txt"));
+            Replay line = new Replay();
+            while (in.read(line)) start.append(line.command());
+            in.close();
+        }
+        catch (IOException e) { throw new Error(e); }
+        start.setLength(start.length() - 8);
+        Solver solver = new Solver(4, 100000);
+        Solver.Node node;
+        try { node = solver.solve("1", start.toString(), new int[1]); }
+        finally { solver.close(); }
+        claim(node != null && node.moves <= 8);
+        String commands = start + Solver.commands(node);
+        StringWriter text = new StringWriter();
+        PrintWriter out = new PrintWriter(text);
+        level.load("/levels/1.txt");
+        for (char cmd : commands.toCharArray()) {
+            level.command(cmd);
+            while (level.step()) { }
+            out.println(level.changes());
+        }
+        out.close();
+        claim(level.count(SUCCESS) > 0 && level.count(SCORE) == node.score);
+        level.load("/levels/1.txt");
+        byte[] bytes = text.toString().getBytes();
+        try { claim(level.check(new ByteArrayInputStream(bytes)).isEmpty()); }
+        catch (IOException e) { throw new Error(e); }
+    }
+
+    // Replay some lines of a recording, checking the changes.
+    void replay(Level<Entity> level, String t, List<String> lines, int a,
+        int b) {
+        for (int n = a; n < b; n++) {
+            String line = lines.get(n);
+            level.command(line.charAt(0));
+            while (level.step()) { }
+            if (! level.changes().equals(line)) {
+                throw new Error("Test " + t + " fails on line " + (n+1));
+            }
+        }
+    }
+
+    private static void claim(boolean b) { if (! b) throw new Error("Bug"); }
+
+    // Do comprehensive replay testing, with the grid checking its consistency.
+    // Use -b n to benchmark the suite instead, averaging over n runs.
     public static void main(String[] args) {
         Test t = new Test();
-        Level<Entity> level = new Level<>(t::hatch);
-        int count = level.tests(t.tests(), t.levels());
+        if (args.length == 2 && args[0].equals("-b")) {
+            t.bench(Integer.parseInt(args[1]));
+            return;
+        }
+        int count = t.testNames.length;
+        if (t.runAll() > 0) System.exit(1);
+        t.allocations();
+        t.snapshots();
+        t.undo();
+        t.binary();
+        t.seeking();
+        t.solver();
+        t.solverThreads();
         System.out.println("Test class OK: " + count + " tests succeeded");
     }
 }
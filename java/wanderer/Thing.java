@@ -14,16 +14,27 @@ monster. A Time capsule provides 250 extra moves when the player collects it. A
 Landmine explodes and kills the player if the player walks on it. An Arrival
 entity, at most one per level, marks the arrival point for any teleports. A
 Teleport takes the player to the arrival point. The Exit in each level allows
-the player to end the level, when all the stars have been collected. */
+the player to end the level, when all the stars have been collected.
+
+Things are shared, so that a level has one object for each type of thing,
+rather than one for each cell.  The exceptions are an Arrival, which is kept in
+a state variable, and a Teleport, which is kept by the player while teleporting,
+since their positions must stay fixed. */
 
 class Thing extends Entity {
     // Override to deal with multiple types of Thing.
     public Entity spawn() { return new Thing(); }
 
+    // Share things, except for arrivals and teleports.
+    public boolean shareable() { return ! is(Arrival) && ! is(Teleport); }
+
     // Define wake to deal with multiple types of Thing.
     public void wake() {
         if (! is(Space) && ! is(Wall)) background(Space);
-        if (is(Star) || is(Cage)) add(STARS, 1);
+        if (is(Star) || is(Cage)) {
+            add(STARS, 1);
+            if (is(Cage)) reserve(Star);
+        }
         else if (is(Arrival)) {
             set(ARRIVAL, this);
             hide();
@@ -56,14 +56,14 @@ public class Wanderer extends Application implements Game<Entity> {
     }
 
     public Cell<Entity> player(Level<Entity> level) {
-        return level.entity("PLAYER");
+        return level.entity(PLAYER);
     }
 
     public String status(Level<Entity> level) {
         String lev = "Level " + level.name();
         lev += ": " + level.title();
-        String message = level.string("MESSAGE");
-        if (message.length() == 0) message = "Stars: " + level.count("STARS");
+        String message = level.string(MESSAGE);
+        if (message.length() == 0) message = "Stars: " + level.count(STARS);
         String score = "Score: " + level.count(SCORE);
         String moves = "Moves: " + level.count(MOVES);
         String gap = "     ";